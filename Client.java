@@ -1,5 +1,10 @@
 import java.net.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class Client implements Runnable {
@@ -207,6 +212,53 @@ public class Client implements Runnable {
 		updateGUI();
 	}
 
+	/**
+	 * Handles receiving the DELTA message from the server, which lists the cells of the lookreply
+	 * that have changed since it was received. Each cell is patched in place rather than sending
+	 * LOOK again, and the renderhint is rebuilt so that its lines still match the players in the
+	 * lookreply from left to right and top to bottom. If there is no current lookreply then a LOOK is
+	 * already on its way, so the delta is read and ignored.
+	 */
+	private void receiveDelta(String lineAmount) throws IOException {
+		int numberOfLines = Integer.parseInt(lineAmount);
+		String[] lines = new String[numberOfLines];
+		for (int i = 0; i < numberOfLines; i++) {
+			lines[i] = in.readLine();
+		}
+		if ((lastLookReply.length == 1) || (lastRenderHint == null)) {
+			return;
+		}
+		int centre = lastLookReply.length / 2; // offsets are relative to the player in the middle
+		List<String> renderHint = new ArrayList<String>(Arrays.asList(lastRenderHint));
+		for (String line : lines) {
+			String[] components = line.split(" "); // column offset, row offset, cell and direction
+			int colOffset = Integer.parseInt(components[0]);
+			int rowOffset = Integer.parseInt(components[1]);
+			lastLookReply[colOffset + centre][rowOffset + centre] = components[2].charAt(0);
+			String position = components[0] + " " + components[1] + " ";
+			Iterator<String> iterator = renderHint.iterator();
+			while (iterator.hasNext()) { // anyone who was on this cell has gone
+				if (iterator.next().startsWith(position)) {
+					iterator.remove();
+				}
+			}
+			if (components.length == 4) { // someone has arrived on this cell
+				renderHint.add(position + components[3]);
+			}
+		}
+		Collections.sort(renderHint, (first, second) -> {
+			String[] firstParts = first.split(" ");
+			String[] secondParts = second.split(" ");
+			int rowOrder = Integer.compare(Integer.parseInt(firstParts[1]), Integer.parseInt(secondParts[1]));
+			if (rowOrder != 0) {
+				return rowOrder;
+			}
+			return Integer.compare(Integer.parseInt(firstParts[0]), Integer.parseInt(secondParts[0]));
+		});
+		lastRenderHint = renderHint.toArray(new String[renderHint.size()]);
+		updateGUI();
+	}
+
 	/**
 	 * Sends HELLO and the name the client has chosen to the server as the first command. The server
 	 * will generate a name if this command is not received first.
@@ -320,6 +372,8 @@ public class Client implements Runnable {
 						break;
 					case "RENDERHINT": receiveRenderHint(command[1]);
 						break;
+					case "DELTA": receiveDelta(command[1]);
+						break;
 					default: break;
 				}
 			}
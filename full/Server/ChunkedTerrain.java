@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The tile types of a map too large to keep in memory all at once. The map is
+ * divided into square chunks, each of which is only loaded when a cell in it
+ * is first looked at. Only a limited number of chunks are kept: when there
+ * are too many, the quarter of them looked up least recently are dropped. The
+ * terrain never changes, so a dropped chunk can simply be loaded again; the
+ * items, which do change, are kept separately by the map.
+ *
+ * Players look at the cells around them every turn, so the chunks they are
+ * in stay recently used, and it is the chunks nobody is near that are dropped.
+ *
+ * Many clients may LOOK at once, so no lock is held to find a cell, and a
+ * chunk is read from the map without holding one either. If two clients
+ * need the same chunk at the same time, both read it and only one copy is
+ * kept.
+ */
+public class ChunkedTerrain {
+
+	/**
+	 * Reads the tile types of part of the map from wherever the map is stored
+	 */
+	public interface Loader {
+		/**
+		 * @return the tile types of the rectangle of cells, in row-major
+		 *         order, as ordinals of Tile.TileType
+		 */
+		byte[] load(int firstCol, int firstRow, int cols, int rows)
+				throws IOException;
+	}
+
+	/**
+	 * The tile types of one chunk, and when it was last looked up
+	 */
+	private static final class Chunk {
+		private final int index;
+		private final byte[] tiles;
+		private volatile long lastUsed;
+
+		private Chunk(int index, byte[] tiles) {
+			this.index = index;
+			this.tiles = tiles;
+		}
+	}
+
+	// Chunks are CHUNK_SIZE cells square
+	private static final int CHUNK_SHIFT = 6;
+	public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private final Loader loader;
+	private final int width;
+	private final int height;
+	private final int chunksAcross;
+	private final int maxChunks;
+
+	// The loaded chunks, by their index
+	private final ConcurrentHashMap<Integer, Chunk> chunks = new ConcurrentHashMap<Integer, Chunk>();
+
+	// The chunk used last, which is usually the next one wanted, so it can be
+	// found without looking it up
+	private volatile Chunk lastChunk = null;
+
+	// Whether a thread is already dropping chunks, so that others don't join in
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+	// How often a chunk was already loaded, had to be loaded, or was dropped,
+	// for the server log
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates the terrain, without loading any of it
+	 *
+	 * @param loader
+	 *            reads the tile types from where the map is stored
+	 * @param width
+	 *            the width of the map
+	 * @param height
+	 *            the height of the map
+	 * @param maxChunks
+	 *            the most chunks to keep loaded at once
+	 */
+	public ChunkedTerrain(Loader loader, int width, int height,
+			final int maxChunks) {
+		this.loader = loader;
+		this.width = width;
+		this.height = height;
+		this.chunksAcross = (width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		this.maxChunks = maxChunks;
+	}
+
+	/**
+	 * Finds the tile type of a cell, loading its chunk if need be. This may be
+	 * called by several clients at once, e.g. to LOOK.
+	 *
+	 * @return the ordinal of the Tile.TileType of the cell
+	 */
+	public byte getTile(int col, int row) {
+		final int chunkCol = col >> CHUNK_SHIFT;
+		final int chunkRow = row >> CHUNK_SHIFT;
+		final int index = chunkRow * this.chunksAcross + chunkCol;
+
+		Chunk chunk = this.lastChunk;
+		if ((chunk == null) || (chunk.index != index)) {
+			chunk = this.chunks.get(index);
+			if (chunk == null) {
+				this.misses.increment();
+				chunk = new Chunk(index, loadChunk(chunkCol, chunkRow));
+				final Chunk raced = this.chunks.putIfAbsent(index, chunk);
+				if (raced != null) {
+					chunk = raced;
+				} else if (this.chunks.size() > this.maxChunks) {
+					evict();
+				}
+			} else {
+				this.hits.increment();
+			}
+			chunk.lastUsed = System.nanoTime();
+			this.lastChunk = chunk;
+		} else {
+			this.hits.increment();
+		}
+
+		final int chunkWidth = Math.min(CHUNK_SIZE, this.width
+				- (chunkCol << CHUNK_SHIFT));
+		return chunk.tiles[(row & (CHUNK_SIZE - 1)) * chunkWidth
+				+ (col & (CHUNK_SIZE - 1))];
+	}
+
+	/**
+	 * Drops the quarter of the chunks which were looked up least recently.
+	 * Only one thread does this at a time; any others carry on, since the
+	 * limit only needs to be roughly kept to.
+	 */
+	private void evict() {
+		if (!this.evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			// Other threads carry on using chunks meanwhile, so the times are
+			// copied before they are sorted, and any chunk used since then is
+			// kept
+			final Chunk[] loaded = this.chunks.values().toArray(new Chunk[0]);
+			final long[] times = new long[loaded.length];
+			for (int i = 0; i < loaded.length; i++) {
+				times[i] = loaded[i].lastUsed;
+			}
+			Arrays.sort(times);
+			final int toDrop = loaded.length - (this.maxChunks - this.maxChunks / 4);
+			if (toDrop <= 0) {
+				return;
+			}
+			final long cutOff = times[toDrop - 1];
+			for (final Chunk chunk : loaded) {
+				if ((chunk.lastUsed <= cutOff) && this.chunks.remove(chunk.index, chunk)) {
+					this.evictions.increment();
+				}
+			}
+		} finally {
+			this.evicting.set(false);
+		}
+	}
+
+	/**
+	 * @return a summary of the chunk metrics, for the server log
+	 */
+	@Override
+	public String toString() {
+		final long hitCount = this.hits.sum();
+		final long missCount = this.misses.sum();
+		final long lookups = hitCount + missCount;
+		final double hitRate = (lookups == 0) ? 0 : (100.0 * hitCount)
+				/ lookups;
+		return String.format(
+				"%d chunks loaded, %d hits, %d misses (%.1f%% hit rate), %d evicted",
+				this.chunks.size(), hitCount, missCount, hitRate,
+				this.evictions.sum());
+	}
+
+	private byte[] loadChunk(int chunkCol, int chunkRow) {
+		final int firstCol = chunkCol << CHUNK_SHIFT;
+		final int firstRow = chunkRow << CHUNK_SHIFT;
+		try {
+			return this.loader.load(firstCol, firstRow,
+					Math.min(CHUNK_SIZE, this.width - firstCol),
+					Math.min(CHUNK_SIZE, this.height - firstRow));
+		} catch (final IOException e) {
+			// The map was readable when the game started, so this can't be
+			// recovered from
+			throw new UncheckedIOException("could not load part of the map", e);
+		}
+	}
+}
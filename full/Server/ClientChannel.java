@@ -0,0 +1,467 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+public class ClientChannel extends CommandLineUser {
+
+	/**
+	 * This class extends CommandLineUser to serve one client of an NioServer. Unlike ClientThread it
+	 * has no thread of its own: the selector thread calls read and write when the socket is ready,
+	 * and complete lines are cut out of a direct buffer and passed on to processCommand. Because
+	 * every ClientChannel is driven by the same selector thread, commands are never processed
+	 * simultaneously, though they still take the game's write lock in case the game ends a turn that
+	 * has run out of time. If a GameLoop is given, commands are handed to it instead, and its replies are
+	 * queued here for the selector thread to send. When the loop's queue is full, the client stops
+	 * being read until the NioServer finds room for the command it was holding, so the selector
+	 * thread never waits for a busy game. On a server with rooms, the client is paused in the same
+	 * way while the room it asked for is being opened, so the selector thread never waits for a map
+	 * to load either.
+	 */
+
+	private static final int READ_BUFFER_SIZE = 8192; // the longest line a client may send
+	private static final Charset CHARSET = Charset.defaultCharset(); // matches the reader and
+	// writer used by ClientThread
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private static final int OUTPUT_BUFFER_SIZE = 512; // the size the output buffer starts at
+	private static final int IDLE_OUTPUT_LIMIT = 65536; // an empty output buffer larger than this is
+	// replaced by a new one of the starting size, so that a burst of messages doesn't keep it large
+	private final ReentrantLock outputBufferLock = new ReentrantLock(); // held while the output
+	// buffer is used, as messages may come from the game loop while the selector thread writes
+	private ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE); // messages encoded
+	// straight into it and not yet accepted by the socket, all sent by the next write
+	private volatile boolean outputWaiting = false; // true if the output buffer isn't empty
+	private final CharsetEncoder encoder = CHARSET.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE); // encodes every message, as
+	// Charset.encode would but without making a new buffer each time
+	private final CharBuffer newline = CharBuffer.wrap(new char[] { '\n' }); // ends each message
+	private CharBuffer wrappedReply = null; // the reply buffer's storage as a CharBuffer, kept for
+	// as long as the reply buffer keeps the same array
+	private final GameLogic game; // the game, or null on a server with rooms
+	private GameLoop loop; // runs this client's commands, or null to run them here
+	private final RoomManager rooms; // the rooms to join, or null if the server has one game
+	private boolean firstTurn = true;
+	private Runnable pending = null; // a command the loop had no room for, which pauses reading;
+	// only the selector thread changes it
+	private CompletableFuture<Room> joining = null; // the room this client is waiting to join,
+	// which pauses reading like pending does
+	private String joiningCommand; // the command that asked for the room being joined
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructs a ClientChannel for a connection that has already been accepted and registered with
+	 * the selector under the given key. The GameLogic is shared between all clients, and the
+	 * GameLoop may be null.
+	 */
+	public ClientChannel(SocketChannel localChannel, SelectionKey localKey, GameLogic localGame,
+			GameLoop localLoop) {
+		this(localChannel, localKey, localGame, null, localLoop);
+	}
+
+	/**
+	 * Constructs a ClientChannel for a server with rooms. The client isn't in any game until it
+	 * joins a room, after which its commands are handed to that room's GameLoop.
+	 */
+	public ClientChannel(SocketChannel localChannel, SelectionKey localKey, RoomManager localRooms) {
+		this(localChannel, localKey, null, localRooms, null);
+	}
+
+	private ClientChannel(SocketChannel localChannel, SelectionKey localKey, GameLogic localGame,
+			RoomManager localRooms, GameLoop localLoop) {
+		super(localGame);
+		game = localGame;
+		channel = localChannel;
+		key = localKey;
+		rooms = localRooms;
+		loop = localLoop;
+	}
+
+	/**
+	 * Adds the new player to the game. This is called by the selector thread as soon as the
+	 * connection has been accepted, and takes the place of the thread started by ClientThread. On a
+	 * server with rooms the player is added once the client has joined one.
+	 */
+	@Override
+	public void run() {
+		if (rooms == null) {
+			joinGame();
+		}
+		serverOutput("SERVER", "CONNECTED");
+	}
+
+	/**
+	 * Adds the player to the game, once the client is in one.
+	 */
+	private void joinGame() {
+		executeInternal(() -> {
+			addPlayer();
+			broadcastChange();
+		});
+	}
+
+	/**
+	 * Reads whatever the client has sent and processes every complete line in it. Anything after
+	 * the last newline is kept in the buffer until the rest of the line arrives.
+	 *
+	 * @return true if the client has just been paused because its GameLoop is full or its room is
+	 *         being opened, in which case resume must be called until it succeeds
+	 */
+	public boolean read() {
+		if (isPaused()) {
+			updateInterest(); // already paused, but another thread queued output and set the flag
+			return false;
+		}
+		try {
+			if (channel.read(readBuffer) == -1) {
+				close(); // the client has closed the connection
+				return false;
+			}
+		} catch (IOException e) {
+			close();
+			return false;
+		}
+		processLines();
+		return isPaused();
+	}
+
+	/**
+	 * Enters the room once it has opened, or tries again to queue the command the GameLoop had no
+	 * room for, then carries on with any lines read after it. Reading starts again once everything
+	 * has been queued.
+	 *
+	 * @return true if the client is no longer paused, or has been closed
+	 */
+	public boolean resume() {
+		if (closed) {
+			return true;
+		}
+		if (joining != null) {
+			if (!joining.isDone()) {
+				return false;
+			}
+			finishJoining();
+		} else if (loop.offer(pending)) {
+			pending = null;
+		}
+		if (isPaused()) {
+			return false;
+		}
+		processLines();
+		if (isPaused()) {
+			return false;
+		}
+		updateInterest();
+		return true;
+	}
+
+	/**
+	 * @return true if the client isn't being read, because its GameLoop is full or its room is
+	 *         being opened
+	 */
+	private boolean isPaused() {
+		return (pending != null) || (joining != null);
+	}
+
+	/**
+	 * Processes every complete line in the read buffer, stopping early if the GameLoop runs out of
+	 * room. Whatever hasn't been processed is left in the buffer.
+	 */
+	private void processLines() {
+		readBuffer.flip();
+		int lineStart = 0;
+		for (int i = 0; i < readBuffer.limit(); i++) {
+			if (readBuffer.get(i) == '\n') {
+				processLine(decodeLine(lineStart, i));
+				lineStart = i + 1;
+				if (closed) {
+					return;
+				}
+				if (isPaused()) {
+					break;
+				}
+			}
+		}
+		readBuffer.position(lineStart);
+		readBuffer.compact();
+		if (isPaused()) {
+			updateInterest(); // stop reading until the command has been queued or the room opened
+		} else if (!readBuffer.hasRemaining()) {
+			close(); // the line is longer than the buffer, so it can never be completed
+		}
+	}
+
+	/**
+	 * Sets which events the selector should wait for on this client: reading unless it is paused,
+	 * and writing if there is output waiting.
+	 */
+	private void updateInterest() {
+		try {
+			final int ops = (isPaused() ? 0 : SelectionKey.OP_READ)
+					| (outputWaiting ? SelectionKey.OP_WRITE : 0);
+			key.interestOps(ops);
+		} catch (CancelledKeyException e) {
+			return; // the connection has been closed
+		}
+	}
+
+	/**
+	 * Writes as much of the output buffer as the socket will accept, which is every message queued
+	 * since the last time in one write. If some is left over, the key stays flagged for writing so
+	 * the selector calls this again when there is room.
+	 */
+	public void write() {
+		boolean failed = false;
+		outputBufferLock.lock();
+		try {
+			output.flip();
+			channel.write(output);
+			output.compact();
+			outputWaiting = (output.position() > 0);
+			if (!outputWaiting && (output.capacity() > IDLE_OUTPUT_LIMIT)) {
+				output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+			}
+		} catch (IOException e) {
+			failed = true;
+		} finally {
+			outputBufferLock.unlock();
+		}
+		if (failed) {
+			close();
+			return;
+		}
+		if (!outputWaiting) {
+			updateInterest();
+			if (outputWaiting) {
+				// the game loop queued another message while the flag was being cleared
+				updateInterest();
+			}
+		}
+	}
+
+	/**
+	 * Queues a string to be sent to the client. Nothing is written here: the message is encoded into
+	 * the output buffer and the key is flagged for writing, so every message produced while the
+	 * selector thread handles the current event is sent together on its next pass. The messages are
+	 * never sent out of order, because the buffer is always written from the front. The message may
+	 * come from another thread, such as the game loop or a delayed announcement, so the selector is
+	 * woken to make sure it notices the new flag.
+	 */
+	@Override
+	protected void doOutputMessage(String message) {
+		if (closed) {
+			return;
+		}
+		serverOutput("SENT", message);
+		outputBufferLock.lock();
+		try {
+			encodeLine(CharBuffer.wrap(message));
+		} finally {
+			outputBufferLock.unlock();
+		}
+		updateInterest();
+		key.selector().wakeup();
+	}
+
+	/**
+	 * Queues a reply from the reply buffer in the same way. Its characters are encoded straight
+	 * into the output buffer, so no String is made for them.
+	 */
+	@Override
+	protected void doOutputMessage(ReplyBuffer reply) {
+		if (closed) {
+			return;
+		}
+		serverOutput("SENT", reply);
+		outputBufferLock.lock();
+		try {
+			if ((wrappedReply == null) || (wrappedReply.array() != reply.getChars())) {
+				wrappedReply = CharBuffer.wrap(reply.getChars()); // the reply buffer has grown
+			}
+			wrappedReply.clear().limit(reply.length());
+			encodeLine(wrappedReply);
+		} finally {
+			outputBufferLock.unlock();
+		}
+		updateInterest();
+		key.selector().wakeup();
+	}
+
+	/**
+	 * Encodes a message and a newline onto the end of the output buffer, growing it if they don't
+	 * fit. The output buffer lock must be held.
+	 */
+	private void encodeLine(CharBuffer message) {
+		encoder.reset();
+		encode(message, false);
+		newline.clear();
+		encode(newline, true);
+		while (encoder.flush(output).isOverflow()) {
+			growOutput();
+		}
+		outputWaiting = true;
+	}
+
+	private void encode(CharBuffer characters, boolean endOfInput) {
+		CoderResult result = encoder.encode(characters, output, endOfInput);
+		while (result.isOverflow()) {
+			growOutput();
+			result = encoder.encode(characters, output, endOfInput);
+		}
+	}
+
+	/**
+	 * Doubles the size of the output buffer, keeping what is in it.
+	 */
+	private void growOutput() {
+		final ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+		output.flip();
+		larger.put(output);
+		output = larger;
+	}
+
+	/**
+	 * Decodes the bytes between start and end in the read buffer into a line of text, dropping the
+	 * carriage return sent by clients that end their lines with \r\n.
+	 */
+	private String decodeLine(int start, int end) {
+		if ((end > start) && (readBuffer.get(end - 1) == '\r')) {
+			end--;
+		}
+		ByteBuffer line = readBuffer.duplicate();
+		line.limit(end).position(start);
+		return CHARSET.decode(line).toString();
+	}
+
+	/**
+	 * Processes one line from the client. As in ClientThread, a player who does not say HELLO first
+	 * is given a random name after their first command has been answered.
+	 */
+	private void processLine(final String command) {
+		serverOutput("RECEIVED", command);
+		if ((rooms != null) && (getRoom() == null)) { // the first command on a server with rooms
+			// either joins one or puts the client in the default room, which may have to be opened
+			// first
+			joining = requestRoom(rooms, command);
+			joiningCommand = command;
+			if (joining.isDone()) {
+				finishJoining(); // the room was already open
+			} else {
+				joining.whenComplete((room, e) -> key.selector().wakeup()); // resume promptly
+			}
+			return;
+		}
+		executeCommand(command);
+	}
+
+	/**
+	 * Enters the room that has been opened for the client, which is then sent the command that
+	 * asked for it unless it was JOIN. If the room couldn't be joined, the client is told why and
+	 * may try again.
+	 */
+	private void finishJoining() {
+		final CompletableFuture<Room> joined = joining;
+		joining = null;
+		enterRoom(joined);
+		if (getRoom() == null) {
+			return;
+		}
+		loop = getRoom().getLoop();
+		joinGame();
+		if (!isJoin(joiningCommand)) {
+			executeCommand(joiningCommand);
+		}
+	}
+
+	/**
+	 * Hands a command to the game, once the client is in one.
+	 */
+	private void executeCommand(final String command) {
+		final boolean needsHello = firstTurn && !command.startsWith("HELLO"); // HELLO must be sent on
+		// the first turn
+		firstTurn = false;
+		execute(() -> {
+			processCommand(command);
+			if (needsHello) {
+				processCommand("HELLO " + generateHumanName());
+			}
+		});
+	}
+
+	/**
+	 * Runs a client's command, either straight away on the selector thread or by queueing it for the
+	 * GameLoop. If the loop is full, the command is kept and the client is paused.
+	 */
+	private void execute(Runnable task) {
+		if (loop == null) {
+			executeInternal(task);
+		} else if (!loop.offer(task)) {
+			pending = task;
+		}
+	}
+
+	/**
+	 * Runs a task the server started by itself, such as adding or removing the player, either
+	 * straight away on the selector thread or by queueing it for the GameLoop, which always has
+	 * room for it.
+	 */
+	private void executeInternal(Runnable task) {
+		if (loop != null) {
+			loop.execute(task);
+			return;
+		}
+		final StampedLock lock = game.getLock();
+		final long stamp = lock.writeLock();
+		try {
+			task.run();
+		} finally {
+			lock.unlock(stamp);
+		}
+	}
+
+	/**
+	 * Closes the connection and removes the player from the game. This is safe to call more than
+	 * once, since a failed write may be noticed after the client has already been closed.
+	 */
+	private void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		if (joining != null) {
+			// the room is still being opened, so leave it as soon as it has been joined
+			joining.thenAccept(room -> rooms.leave(room));
+			joining = null;
+			return;
+		}
+		if ((rooms != null) && (getRoom() == null)) {
+			return; // the client never joined a game, so there is no player to remove
+		}
+		pending = null;
+		executeInternal(() -> {
+			removePlayer();
+			serverOutput("SERVER", "DISCONNECTED");
+			broadcastChange();
+		});
+		if (getRoom() != null) {
+			rooms.leave(getRoom());
+		}
+	}
+
+}
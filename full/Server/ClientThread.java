@@ -1,7 +1,12 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.Random;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class ClientThread extends CommandLineUser {
 
@@ -15,32 +20,97 @@ public class ClientThread extends CommandLineUser {
 	private Socket socket;
 	private Thread thread;
 	private GameLogic game;
+	private final ReentrantLock outputLock = new ReentrantLock(); // held while writing to the socket
+	private final BufferedWriter out; // the one output stream used for every message to this client
+	private volatile boolean batching = false; // true while this client's own command is processed
+	private GameLoop loop; // runs this client's commands, or null if the game lock is used
+	private final RoomManager rooms; // the rooms to join, or null if the server has one game
+	private final boolean queued; // true if messages are queued for the writer thread, which they
+	// are whenever a GameLoop may be in use
+	private static final int OUTBOUND_CAPACITY = 4096; // messages waiting for a client's writer
+	// thread before the client is taken to have stopped reading and is dropped
+	private final BlockingQueue<ReplyBuffer> outbound = new ArrayBlockingQueue<ReplyBuffer>(
+			OUTBOUND_CAPACITY); // messages from the game loop waiting for the writer thread
+	private static final int SPARE_BUFFERS = 16; // buffers kept for the next messages once the
+	// writer thread has sent them
+	private final BlockingQueue<ReplyBuffer> spare = new ArrayBlockingQueue<ReplyBuffer>(
+			SPARE_BUFFERS); // sent messages' buffers, so that queueing a reply copies it into one which
+	// has already grown to fit rather than making a String of it
+	private volatile boolean overflowed = false; // true once the outbound queue has filled up, after
+	// which nothing more is queued for this client
+	private static final ReplyBuffer END_OF_OUTPUT = new ReplyBuffer(0); // tells the writer thread
+	// to close the connection; compared by reference so no real message can match it
 
 	/**
-	 * Constructs the ClientThread class using the socket and game provided. The socket is unique to
-	 * this instance of ClientThread, but the GameLogic is shared between all instances, hence the
-	 * need for synchronisation.
+	 * Constructs the ClientThread class using the socket and game provided, and runs it on a new
+	 * platform thread.
 	 */
-	public ClientThread(Socket localSocket, GameLogic localGame) {
+	public ClientThread(Socket localSocket, GameLogic localGame) throws IOException {
+		this(localSocket, localGame, Thread::new);
+	}
+
+	/**
+	 * Constructs the ClientThread class using the socket and game provided, and runs it on a thread
+	 * made by the given factory, which may make virtual threads. The socket is unique to this
+	 * instance of ClientThread, but the GameLogic is shared between all instances, hence the need for
+	 * synchronisation.
+	 */
+	public ClientThread(Socket localSocket, GameLogic localGame, ThreadFactory threadFactory)
+			throws IOException {
+		this(localSocket, localGame, threadFactory, null);
+	}
+
+	/**
+	 * Constructs the ClientThread class as above, but if a GameLoop is given then commands are handed
+	 * to it rather than being processed under the game lock. A second thread is then made by the
+	 * factory to send the loop's replies, so the loop never waits on this client's socket.
+	 */
+	public ClientThread(Socket localSocket, GameLogic localGame, ThreadFactory threadFactory,
+			GameLoop localLoop) throws IOException {
+		this(localSocket, localGame, null, threadFactory, localLoop);
+	}
+
+	/**
+	 * Constructs the ClientThread class for a server with rooms. The client isn't in any game until
+	 * it joins a room, after which its commands are handed to that room's GameLoop.
+	 */
+	public ClientThread(Socket localSocket, RoomManager localRooms, ThreadFactory threadFactory)
+			throws IOException {
+		this(localSocket, null, localRooms, threadFactory, null);
+	}
+
+	private ClientThread(Socket localSocket, GameLogic localGame, RoomManager localRooms,
+			ThreadFactory threadFactory, GameLoop localLoop) throws IOException {
 		super(localGame);
 		game = localGame;
+		rooms = localRooms;
 		socket = localSocket;
-		thread = new Thread(this); // creates a new thread and passes this in. This is runnable because
-		// CommandLineUser implements Runnable.
+		loop = localLoop;
+		queued = (loop != null) || (rooms != null);
+		out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())); // opens an output
+		// stream to the client socket which is kept for the life of the connection
+		if (queued) {
+			threadFactory.newThread(this::writeOutbound).start();
+		}
+		thread = threadFactory.newThread(this); // creates a new thread and passes this in. This is
+		// runnable because CommandLineUser implements Runnable.
 		thread.start(); // starts the new thread to listen for commands.
 	}
 
 	/**
 	 * Runs in a thread to accept input from the client and passes it to CommandLineUser to be
-	 * processed. This is where the main synchronisation happens, because by making ClientThread
-	 * objects have a lock on the shared game object, only one at a time can have their command
-	 * processed.
+	 * processed. This is where the main synchronisation happens, because ClientThread objects either
+	 * take the lock of the shared game object around every command or hand every command to the
+	 * single thread of the GameLoop. The lock is a StampedLock rather than a synchronized block so
+	 * that a virtual thread waiting for it, or blocking on the socket while holding it, does not pin
+	 * its carrier.
 	 */
 	@Override
 	public void run() {
 		boolean firstTurn = true;
-		addPlayer(); // adds the new player
-		broadcastChange();
+		if (rooms == null) {
+			joinGame();
+		}
 		try (
 			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			// opens a reader from the client socket
@@ -50,71 +120,246 @@ public class ClientThread extends CommandLineUser {
 			while (((command = in.readLine()) != null)) { // constantly reads from
 				// client until the connection is closed or the game is over
 				serverOutput("RECEIVED", command);
-				synchronized (game) {
-					processCommand(command);
-					// this only allows one client at a time to have their command processed. If another
-					// client is already in this synchronized block, the first client must wait until the
-					// other client has released their lock on game. This works because all ClientThread
-					// objects share the same GameLogic object, game.
-				}
-				if (firstTurn && !command.startsWith("HELLO")) { // HELLO must be sent on the first turn
-					String autoName = Long.toHexString(UUID.randomUUID().getLeastSignificantBits());
-					autoName = autoName.toUpperCase();
-					try {
-						Thread.sleep(100); // this is needed to allow long responses such as lookreply to be
-						// sent entirely before the HELLO is sent
-					} catch (InterruptedException e) {}
-					synchronized (game) {
-						processCommand("HELLO HUMAN-" + autoName); // picks a random name if the human doesn't
+				if ((rooms != null) && (getRoom() == null)) { // the first command on a server with rooms
+					// either joins one or puts the client in the default room
+					final boolean joinCommand = joinRoom(rooms, command);
+					if (getRoom() == null) {
+						continue; // the room couldn't be joined, so the client may try again
 					}
+					game = getRoom().getGame();
+					loop = getRoom().getLoop();
+					joinGame();
+					if (joinCommand) {
+						continue;
+					}
+				}
+				final String received = command;
+				execute(() -> processCommand(received), isReadOnly(command));
+				if (firstTurn && !command.startsWith("HELLO")) { // HELLO must be sent on the first turn.
+					// There is no need to wait for long responses such as lookreply to be sent first,
+					// because they are already flushed or queued ahead of anything the HELLO produces.
+					final String hello = "HELLO " + generateHumanName(); // picks a random name if the
+					// human doesn't
+					execute(() -> processCommand(hello), false);
 				}
 				firstTurn = false;
 			}
 
 		} catch (IOException e) {
 		} finally {
-			removePlayer();
-			try {
-				socket.close();
-			} catch (IOException e) {}
-			serverOutput("SERVER", "DISCONNECTED");
+			if ((rooms != null) && (getRoom() == null)) {
+				closeConnection(); // the client never joined a game, so there is no player to remove
+			} else {
+				execute(() -> {
+					removePlayer();
+					closeConnection();
+					serverOutput("SERVER", "DISCONNECTED");
+					broadcastChange();
+				}, false);
+			}
+			if (getRoom() != null) {
+				rooms.leave(getRoom());
+			}
+		}
+	}
+
+	/**
+	 * Adds the player to the game, once the client is in one.
+	 */
+	private void joinGame() {
+		execute(() -> {
+			addPlayer(); // adds the new player
 			broadcastChange();
+		}, false);
+	}
+
+	/**
+	 * Processes a task which calls into the game. If there is a GameLoop the task is queued for it.
+	 * Otherwise the task runs here while holding the game lock. Tasks which change the game take the
+	 * write lock, which only allows one client at a time to have their command processed. If another
+	 * client already holds the lock, the first client must wait until the other client has released
+	 * it. This works because all ClientThread objects share the same GameLogic object, game. Tasks
+	 * which only look at the game, such as LOOK, take the read lock instead, so any number of them
+	 * can run at once as long as nobody is changing the game. Every line sent to this client while
+	 * the task runs is gathered in the writer and sent in one go once the lock has been released.
+	 */
+	private void execute(Runnable task, boolean readOnly) {
+		if (loop != null) {
+			loop.submit(task);
+			return;
 		}
+		final StampedLock lock = game.getLock();
+		final long stamp = readOnly ? lock.readLock() : lock.writeLock();
+		batching = true;
+		try {
+			task.run();
+		} finally {
+			batching = false;
+			lock.unlock(stamp);
+		}
+		flushOutput();
 	}
 
 	/**
-	 * Sends a string over the network to the client. This is synchronised so that two server messages
+	 * Closes the connection to the client. When a GameLoop is in use the writer thread does this, once
+	 * it has sent everything queued before the player was removed.
+	 */
+	private void closeConnection() {
+		if (queued) {
+			if (!outbound.offer(END_OF_OUTPUT)) {
+				// the client was dropped with its queue full, so nothing queued will be sent anyway
+				outbound.clear();
+				outbound.add(END_OF_OUTPUT);
+			}
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Sends a string over the network to the client. This is locked so that two server messages
 	 * taking different amounts of time to reach this method don't send at the same time. This can
 	 * happen when the client enters LOOK as their first command, and the server must send both LOOK
-	 * and HELLO in immediate succession.
+	 * and HELLO in immediate succession. The lock belongs to this client only, so writing to one
+	 * slow client does not stop messages reaching the others. Messages caused by this client's own
+	 * command are left in the writer until the command is finished, but anything caused by another
+	 * client, such as a SHOUT, is sent straight away.
 	 */
 	@Override
 	protected void doOutputMessage(String message) {
+		serverOutput("SENT", message);
+		if (queued) {
+			queueMessage(spareBuffer().append(message));
+			return;
+		}
+		outputLock.lock();
 		try {
-			PrintWriter out = new PrintWriter(socket.getOutputStream(), true); // opens an output stream
-			// to the client socket
-			serverOutput("SENT", message);
-			synchronized (game) {
-				out.println(message);
-				// synchronized to stop two messages from being sent simultaneously
+			out.write(message);
+			out.newLine();
+			if (!batching) {
+				out.flush();
 			}
-		} catch (IOException e) {}
+		} catch (IOException e) {
+		} finally {
+			outputLock.unlock();
+		}
 	}
 
 	/**
-	 * This logs all actions taken by the server to the server's standard output. This is the screen
-	 * in demos, but in a real server this could be a log file. Actions are recorded along with other
-	 * fields.
+	 * Sends a reply from the reply buffer to the client. Its characters are written straight into
+	 * the writer, so no String is made for them. The game loop's writer thread only runs later,
+	 * after the buffer has been reused, so in that case they are copied into a spare buffer which is
+	 * queued instead.
 	 */
-	private void serverOutput(String direction, String command) {
-		if (command.startsWith("LOOKREPLY")) {
-			command = "LOOKREPLY"; // don't print the actual reply because it has multiple lines
-		} else if (command.startsWith("RENDERHINT")) {
-			command = "RENDERHINT";
+	@Override
+	protected void doOutputMessage(ReplyBuffer reply) {
+		serverOutput("SENT", reply);
+		if (queued) {
+			queueMessage(spareBuffer().append(reply.getChars(), 0, reply.length()));
+			return;
+		}
+		outputLock.lock();
+		try {
+			out.write(reply.getChars(), 0, reply.length());
+			out.newLine();
+			if (!batching) {
+				out.flush();
+			}
+		} catch (IOException e) {
+		} finally {
+			outputLock.unlock();
 		}
-		System.out.printf("%-10.10s %-30.30s %-30.30s %5.5s\n", direction, command, getPlayerName(), playerID);
-		// lines longer than the columns allocated to them are automatically truncated rather than being
-		// allowed to break the formatting of the table
+	}
+
+	/**
+	 * Queues a message for the writer thread, as the game loop must not wait on the socket. If the
+	 * client has stopped reading, so that its queue is full, the connection is closed instead of
+	 * letting the queue grow without limit. The reader thread then finds the socket closed and
+	 * removes the player as if the client had left.
+	 */
+	private void queueMessage(ReplyBuffer message) {
+		if (overflowed) {
+			return;
+		}
+		if (!outbound.offer(message)) {
+			overflowed = true;
+			serverOutput("SERVER", "DROPPED for not reading");
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * @return an empty buffer for a message to be queued, reusing one the writer thread has sent if
+	 *         there is one
+	 */
+	private ReplyBuffer spareBuffer() {
+		final ReplyBuffer buffer = spare.poll();
+		if (buffer == null) {
+			return new ReplyBuffer(256);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Sends everything waiting in the writer to the client in a single write.
+	 */
+	private void flushOutput() {
+		outputLock.lock();
+		try {
+			out.flush();
+		} catch (IOException e) {
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs in the writer thread when a GameLoop is in use. Waits for messages from the loop and sends
+	 * everything that has queued up since the last write with a single flush. Each message's buffer
+	 * is then kept to be reused. If the client has gone away, messages are still taken from the
+	 * queue, and dropped, until the player has been removed.
+	 */
+	private void writeOutbound() {
+		final List<ReplyBuffer> messages = new ArrayList<ReplyBuffer>();
+		boolean failed = false;
+		try {
+			while (true) {
+				messages.add(outbound.take());
+				outbound.drainTo(messages);
+				for (final ReplyBuffer message : messages) {
+					if (message == END_OF_OUTPUT) {
+						if (!failed) {
+							out.flush();
+						}
+						socket.close();
+						return;
+					}
+					if (!failed) {
+						try {
+							out.write(message.getChars(), 0, message.length());
+							out.newLine();
+						} catch (IOException e) {
+							failed = true;
+						}
+					}
+					spare.offer(message);
+				}
+				messages.clear();
+				if (!failed) {
+					try {
+						out.flush();
+					} catch (IOException e) {
+						failed = true;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {}
 	}
 
 }
@@ -1,5 +1,9 @@
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An abstract class to handle the parsing and handling of textual commands,
@@ -10,8 +14,12 @@ import java.util.List;
  */
 public abstract class CommandLineUser implements PlayerListener, Runnable {
 	// The game which the command line user will operate on.
-	// This is private to enforce the use of "processCommand".
-	private final GameLogic game;
+	// This is private to enforce the use of "processCommand". On a server
+	// with rooms it is null until the user has joined one.
+	private GameLogic game;
+
+	// The room the user has joined, if the server has rooms
+	private Room room = null;
 
 	// The player must be added onto the map. Initially it is not.
 	private boolean playerAdded = false;
@@ -24,8 +32,15 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	// Therefore, we use "waitingForResponse" as a flag for this, and
 	// store any other messages, e.g. shouts from players, in a List.
 	// Due to network latency, this could still happen at the client side.
-	private boolean waitingForResponse = false;
+	// Other players' threads may output to this user at the same time as its
+	// own command, so the buffer is guarded by outputLock.
+	private volatile boolean waitingForResponse = false;
 	private final List<String> messageBuffer;
+	private final ReentrantLock outputLock = new ReentrantLock();
+
+	// LOOKREPLY and RENDERHINT are built in this buffer, which is reused for
+	// every LOOK so that answering one doesn't create any garbage.
+	private final ReplyBuffer replyBuffer = new ReplyBuffer(256);
 
 	CommandLineUser(GameLogic game) {
 		this.game = game;
@@ -53,6 +68,9 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	}
 
 	public String getPlayerName() {
+		if (game == null) {
+			return "NOT SET"; // the user has not joined a room
+		}
 		try {
 			return game.getNameByID(playerID);
 		} catch (ArrayIndexOutOfBoundsException e) {
@@ -110,6 +128,14 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		outputMessage("CHANGE", false);
 	}
 
+	/**
+	 * Sends the cells of the player's view that have changed
+	 */
+	@Override
+	public void sendDelta(String delta) {
+		outputMessage("DELTA" + delta, false);
+	}
+
 	protected void broadcastChange() {
 		this.game.clientChange();
 	}
@@ -140,6 +166,20 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		}
 	}
 
+	/**
+	 * Checks whether a command only looks at the game, so that it can be
+	 * processed alongside other such commands under the game's read lock.
+	 * Anything that is not recognised is treated as a change to the game.
+	 *
+	 * @param commandString
+	 *            the string containing the command and any argument
+	 * @return true if the command does not change the game
+	 */
+	protected static boolean isReadOnly(String commandString) {
+		final String command = commandString.split(" ", 2)[0];
+		return command.equals("LOOK") || command.equals("SHOUT");
+	}
+
 	/**
 	 * Adds the player to the game. This could not be done in the constructor
 	 * because the sub-class must be properly constructed first in some cases,
@@ -173,6 +213,149 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		return this.playerAdded;
 	}
 
+	/**
+	 * Handles a command from a user who has not yet joined a room on a server
+	 * with rooms. JOIN puts them in the room named, with an optional map for
+	 * the room to play if it isn't open yet, e.g. JOIN castle bigmap.txt. Any
+	 * other command puts them in the default room, so that clients which
+	 * don't know about rooms can still play, and is left to be processed as
+	 * usual. If the room can't be joined, the user is told why and stays
+	 * outside every room.
+	 *
+	 * This waits for the room to open. A caller which mustn't wait can use
+	 * requestRoom and enterRoom instead.
+	 *
+	 * Once this has returned with a room joined, the player must be added to
+	 * the room's game through the room's loop.
+	 *
+	 * @param rooms
+	 *            the server's rooms
+	 * @param commandString
+	 *            the string containing the command and any argument
+	 * @return true if the command was JOIN, and so needs no more processing
+	 */
+	protected boolean joinRoom(RoomManager rooms, String commandString) {
+		enterRoom(requestRoom(rooms, commandString));
+		return isJoin(commandString);
+	}
+
+	/**
+	 * Starts joining the room a command from a user outside every room asks
+	 * for, as joinRoom does, without waiting for the room to open
+	 *
+	 * @param rooms
+	 *            the server's rooms
+	 * @param commandString
+	 *            the string containing the command and any argument
+	 * @return the room, once it has been joined, which must then be passed to
+	 *         enterRoom
+	 */
+	protected CompletableFuture<Room> requestRoom(RoomManager rooms, String commandString) {
+		final String commandStringSplit[] = commandString.split(" ");
+
+		if (!isJoin(commandString)) {
+			return rooms.join(RoomManager.DEFAULT_ROOM, null);
+		} else if ((commandStringSplit.length < 2)
+				|| (commandStringSplit.length > 3)) {
+			return CompletableFuture.failedFuture(new CommandException(
+					"JOIN needs a room and optionally a map"));
+		} else {
+			return rooms.join(commandStringSplit[1],
+					(commandStringSplit.length == 3) ? commandStringSplit[2] : null);
+		}
+	}
+
+	/**
+	 * Puts the user in the room they asked for with requestRoom, waiting for
+	 * it to open if it hasn't yet. If the room couldn't be joined, the user is
+	 * told why and stays outside every room.
+	 */
+	protected void enterRoom(CompletableFuture<Room> joined) {
+		try {
+			this.room = joined.join();
+		} catch (final CompletionException e) {
+			if (!(e.getCause() instanceof CommandException)) {
+				throw e;
+			}
+			outputMessage("FAIL " + e.getCause().getMessage(), true);
+			return;
+		}
+		this.game = this.room.getGame();
+		serverOutput("SERVER", "JOINED " + this.room.getName());
+	}
+
+	/**
+	 * @return true if the command is JOIN, which needs no more processing
+	 *         once the room has been joined
+	 */
+	protected static boolean isJoin(String commandString) {
+		return commandString.split(" ")[0].equals("JOIN");
+	}
+
+	/**
+	 * @return the room the user has joined, or null if they haven't joined
+	 *         one, or the server has no rooms
+	 */
+	protected Room getRoom() {
+		return this.room;
+	}
+
+	/**
+	 * Generates a name for a human player who sent another command before HELLO. The name is
+	 * random so that two unnamed players can still be told apart in the server output.
+	 *
+	 * @return a name of the form HUMAN-XXXXXXXX
+	 */
+	protected static String generateHumanName() {
+		String autoName = Long.toHexString(UUID.randomUUID().getLeastSignificantBits());
+		return "HUMAN-" + autoName.toUpperCase();
+	}
+
+	/**
+	 * This logs all actions taken by the server to the server's standard output. This is the screen
+	 * in demos, but in a real server this could be a log file. Actions are recorded along with other
+	 * fields.
+	 */
+	protected void serverOutput(String direction, CharSequence command) {
+		if (startsWith(command, "LOOKREPLY")) {
+			command = "LOOKREPLY"; // don't print the actual reply because it has multiple lines
+		} else if (startsWith(command, "RENDERHINT")) {
+			command = "RENDERHINT";
+		} else if (startsWith(command, "DELTA")) {
+			command = "DELTA";
+		}
+		System.out.printf("%-10.10s %-30.30s %-30.30s %5.5s\n", direction, command, getPlayerName(), playerID);
+		// lines longer than the columns allocated to them are automatically truncated rather than being
+		// allowed to break the formatting of the table
+	}
+
+	/**
+	 * Checks the start of a message without turning it into a String first.
+	 */
+	private static boolean startsWith(CharSequence message, String prefix) {
+		if (message.length() < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (message.charAt(i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Outputs a reply held in the reusable reply buffer. By default this is
+	 * simply copied to a String, but sub-classes which can write the characters
+	 * out directly should override this. The buffer is reused as soon as this
+	 * returns, so anything kept for later must be a copy.
+	 *
+	 * @param reply Reply to output
+	 */
+	protected void doOutputMessage(ReplyBuffer reply) {
+		doOutputMessage(reply.toString());
+	}
+
 	/**
 	 * Inherited by the base class to handle outputting textual messages in the
 	 * correct manner, e.g. printing to the screen or read by the bot.
@@ -213,8 +396,15 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 				throw new CommandException("LOOK does not take an argument");
 			}
 			this.waitingForResponse = true;
-			outputMessage("LOOKREPLY" + "\n" + this.game.clientLook(this.playerID), true);
-			outputMessage("RENDERHINT" + this.game.clientRenderHint(this.playerID), true);
+			this.replyBuffer.clear();
+			this.replyBuffer.append("LOOKREPLY").append('\n');
+			this.game.clientLook(this.playerID, this.replyBuffer);
+			outputResponse(this.replyBuffer);
+
+			this.replyBuffer.clear();
+			this.replyBuffer.append("RENDERHINT");
+			this.game.clientRenderHint(this.playerID, this.replyBuffer);
+			outputResponse(this.replyBuffer);
 		} else if (command.equals("PICKUP")) {
 			if (arg != null) {
 				throw new CommandException("PICKUP does not take an argument");
@@ -363,6 +553,18 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 *            "SUCCESS" or "FAIL".
 	 */
 	private final void outputMessage(String message, boolean isResponse) {
+		this.outputLock.lock();
+		try {
+			outputMessageLocked(message, isResponse);
+		} finally {
+			this.outputLock.unlock();
+		}
+	}
+
+	/**
+	 * Does the work of outputMessage once the output lock is held.
+	 */
+	private void outputMessageLocked(String message, boolean isResponse) {
 		// If the user is waiting for a response, buffer the message
 		if (this.waitingForResponse) {
 			if (isResponse) {
@@ -388,4 +590,31 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 			doOutputMessage(message);
 		}
 	}
+
+	/**
+	 * Outputs a response held in the reply buffer, in the same way as
+	 * outputMessage does for a response given as a String: it is sent straight
+	 * away, followed by anything that was held back while waiting for it.
+	 *
+	 * @param reply
+	 *            the response to send to the player.
+	 */
+	private void outputResponse(ReplyBuffer reply) {
+		this.outputLock.lock();
+		try {
+			doOutputMessage(reply);
+
+			// We can now send everything from the buffer and clear it
+			for (final String line : this.messageBuffer) {
+				doOutputMessage(line);
+			}
+
+			this.messageBuffer.clear();
+
+			// We are no longer waiting for a response
+			this.waitingForResponse = false;
+		} finally {
+			this.outputLock.unlock();
+		}
+	}
 }
@@ -23,6 +23,13 @@ public enum CompassDirection {
 		return String.valueOf(this.text);
 	}
 
+	/**
+	 * @return the character representing the compass direction
+	 */
+	public char toChar() {
+		return this.text;
+	}
+
 	/**
 	 * @return the compass direction corresponding to the string
 	 * @throws NullPointerException
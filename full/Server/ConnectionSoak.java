@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Connects a large number of simulated clients to one game and reports what
+ * each connection costs the server, so that the network engines can be
+ * compared. The server is started in this process on a generated map with
+ * room for every player. Each client then says HELLO and sends LOOKs for a
+ * number of rounds, waiting for every reply before the next round starts.
+ *
+ * The simulated clients are blocking SocketChannels driven from the main
+ * thread. They cost the same whichever engine is used, so differences in the
+ * figures come from the server. The memory used outside the heap, such as
+ * the stacks of platform threads, only shows in the resident set size. Both
+ * ends of every connection are open in this process, so it needs two file
+ * descriptors for each client.
+ */
+public class ConnectionSoak {
+
+	private static final int PORT = 59652;
+
+	// Each player needs this many cells of map, so that they aren't crowded
+	private static final int CELLS_PER_CLIENT = 16;
+
+	// The last part of the reply to a LOOK, whose first line gives the number
+	// of lines which follow it
+	private static final String REPLY_END = "RENDERHINT ";
+
+	/**
+	 * Main method, used to run the soak.
+	 *
+	 * @param args
+	 *            The engine (threaded, virtual or nio), optionally followed by
+	 *            the number of clients and the number of rounds of LOOKs
+	 */
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 1) || (args.length > 3)) {
+			System.err.println("Usage: ConnectionSoak threaded|virtual|nio [clients] [rounds]");
+			System.exit(1);
+		}
+		final Server.Engine engine = Server.Engine.valueOf(args[0].toUpperCase());
+		final int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+		final int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		if ((engine == Server.Engine.VIRTUAL) && (Runtime.version().feature() < 21)) {
+			System.err.println("Virtual threads need Java 21 or later");
+			System.exit(2);
+		}
+
+		// The server logs every command, which would swamp the report
+		final PrintStream report = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		final int side = (int) Math.ceil(Math.sqrt((double) clients * CELLS_PER_CLIENT));
+		final Path mapFile = Files.createTempFile("soak", ".dmap");
+		mapFile.toFile().deleteOnExit();
+		new MapGenerator(1).setWallDensity(0.05).generate(side, side).writeBinary(mapFile.toString());
+		final GameLogic game = new GameLogic(mapFile.toString());
+		game.setExitWhenEmpty(false);
+
+		final long heapBefore = usedHeap();
+		final long residentBefore = residentSetSize();
+		final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		final Thread serverThread = new Thread(() -> new Server(game, engine, null), "Soak server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		final SocketChannel[] channels = new SocketChannel[clients];
+		final Replies replies = new Replies(clients);
+		final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			channels[i] = connect();
+			send(channels[i], "HELLO soak" + i + "\nLOOK\n");
+		}
+		for (int i = 0; i < clients; i++) {
+			awaitReply(channels[i], buffer, replies, i);
+		}
+		final long connectMs = (System.nanoTime() - start) / 1000000;
+
+		final long[] roundMs = new long[rounds];
+		for (int round = 0; round < rounds; round++) {
+			start = System.nanoTime();
+			for (int i = 0; i < clients; i++) {
+				send(channels[i], "LOOK\n");
+			}
+			for (int i = 0; i < clients; i++) {
+				awaitReply(channels[i], buffer, replies, i);
+			}
+			roundMs[round] = (System.nanoTime() - start) / 1000000;
+		}
+		Arrays.sort(roundMs);
+
+		final long heapAfter = usedHeap();
+		final long residentAfter = residentSetSize();
+		final int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		report.println("Engine:             " + engine);
+		report.println("Clients:            " + clients + " on a " + side + "x" + side + " map");
+		report.println("Connect and LOOK:   " + connectMs + "ms");
+		if (rounds > 0) {
+			report.println("LOOK round:         " + roundMs[rounds / 2] + "ms median, "
+					+ roundMs[rounds - 1] + "ms worst");
+		}
+		report.println("Heap per client:    " + ((heapAfter - heapBefore) / clients) + " bytes");
+		if (residentBefore >= 0) {
+			report.println("Resident per client: " + ((residentAfter - residentBefore) / clients)
+					+ " bytes");
+		}
+		report.println("Platform threads:   " + (threadsAfter - threadsBefore) + " more");
+
+		for (final SocketChannel channel : channels) {
+			channel.close();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Connects a client, retrying until the server has started listening
+	 */
+	private static SocketChannel connect() throws IOException, InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT));
+			} catch (final IOException e) {
+				if (attempt == 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private static void send(SocketChannel channel, String lines) throws IOException {
+		final ByteBuffer bytes = StandardCharsets.US_ASCII.encode(lines);
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/**
+	 * What has been read from each client so far. Lines may be split between
+	 * reads, so the start of each client's current line is kept until its end
+	 * arrives.
+	 */
+	private static final class Replies {
+		private final StringBuilder[] lines;
+
+		// The number of lines of RENDERHINT still to come, or -1 if the
+		// RENDERHINT itself hasn't arrived
+		private final int[] hintLinesLeft;
+
+		// The number of whole replies which have arrived and not been waited
+		// for yet
+		private final int[] complete;
+
+		private Replies(int clients) {
+			this.lines = new StringBuilder[clients];
+			this.hintLinesLeft = new int[clients];
+			this.complete = new int[clients];
+			for (int i = 0; i < clients; i++) {
+				this.lines[i] = new StringBuilder();
+				this.hintLinesLeft[i] = -1;
+			}
+		}
+
+		/**
+		 * Goes through a line from a client, counting the reply as complete
+		 * once the last line of its RENDERHINT has arrived. Other lines, e.g.
+		 * CHANGE, are skipped.
+		 */
+		private void line(int client, String line) {
+			if (this.hintLinesLeft[client] > 0) {
+				this.hintLinesLeft[client]--;
+			} else if (line.startsWith(REPLY_END)) {
+				this.hintLinesLeft[client] = Integer.parseInt(line.substring(REPLY_END.length()).trim());
+			} else {
+				return;
+			}
+			if (this.hintLinesLeft[client] == 0) {
+				this.hintLinesLeft[client] = -1;
+				this.complete[client]++;
+			}
+		}
+	}
+
+	/**
+	 * Reads from a client until the whole reply to its next LOOK has arrived.
+	 * Everything read is gone through line by line, so nothing the server
+	 * sends is lost between rounds.
+	 */
+	private static void awaitReply(SocketChannel channel, ByteBuffer buffer, Replies replies,
+			int client) throws IOException {
+		final StringBuilder line = replies.lines[client];
+		while (replies.complete[client] == 0) {
+			buffer.clear();
+			if (channel.read(buffer) == -1) {
+				throw new IOException("client " + client + " was disconnected");
+			}
+			for (int i = 0; i < buffer.position(); i++) {
+				final char c = (char) buffer.get(i);
+				if (c == '\n') {
+					replies.line(client, line.toString());
+					line.setLength(0);
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		replies.complete[client]--;
+	}
+
+	/**
+	 * @return the bytes in use on the heap, after collecting the garbage
+	 */
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return the resident set size of this process in bytes, or -1 if it
+	 *         can't be found, which it can only be on Linux
+	 */
+	private static long residentSetSize() {
+		try {
+			for (final String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (final IOException e) {}
+		return -1;
+	}
+}
@@ -0,0 +1,150 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many writes to the socket ClientThread makes for each command,
+ * and how many bytes each of them sends. A ClientThread is given a socket
+ * whose output stream counts every write it passes on, each of which is a
+ * call into the operating system. A client says HELLO and then sends many
+ * LOOKs, one after another, while reading everything it is sent.
+ *
+ * Each command's replies are gathered and sent in one write, so there should
+ * be about one write for each LOOK. When each message was flushed as soon as
+ * it was written there were several, one for LOOKREPLY and one for
+ * RENDERHINT at least.
+ *
+ * It must be run from the directory the Maps directory is in, like Program.
+ */
+public class FlushBenchmark {
+
+	private static final String MAP = "Maps/bigmap.txt";
+
+	// The number of LOOKs to warm up with, and then to count
+	private static final int WARM_UP = 200;
+	private static final int LOOKS = 2000;
+
+	// The writes made and bytes sent to the client so far
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong written = new AtomicLong();
+
+	// The bytes the client has read so far
+	private static final AtomicLong read = new AtomicLong();
+
+	/**
+	 * A socket whose output stream counts the writes made to it
+	 */
+	private static final class CountingSocket extends Socket {
+		private OutputStream out = null;
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (this.out == null) {
+				this.out = new FilterOutputStream(super.getOutputStream()) {
+					@Override
+					public void write(int b) throws IOException {
+						this.out.write(b);
+						count(1);
+					}
+
+					@Override
+					public void write(byte b[], int off, int len) throws IOException {
+						this.out.write(b, off, len);
+						count(len);
+					}
+				};
+			}
+			return this.out;
+		}
+
+		private static void count(int bytes) {
+			writes.incrementAndGet();
+			written.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		// The server logs every command, which would swamp the report
+		final PrintStream report = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()) {
+			@Override
+			public Socket accept() throws IOException {
+				final Socket socket = new CountingSocket();
+				implAccept(socket);
+				return socket;
+			}
+		};
+		final Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		new ClientThread(server.accept(), new GameLogic(MAP));
+
+		final InputStream in = client.getInputStream();
+		final Thread reader = new Thread(() -> {
+			final byte buffer[] = new byte[64 * 1024];
+			try {
+				int bytes;
+				while ((bytes = in.read(buffer)) != -1) {
+					read.addAndGet(bytes);
+				}
+			} catch (final IOException e) {}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		final PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+		out.println("HELLO flusher");
+		send(out, WARM_UP);
+		final long writesBefore = writes.get();
+		final long writtenBefore = written.get();
+		send(out, LOOKS);
+		final long looksWrites = writes.get() - writesBefore;
+		final long looksWritten = written.get() - writtenBefore;
+
+		report.println(String.format("%d LOOKs on %s", LOOKS, MAP));
+		report.println(String.format("Writes               %8d", looksWrites));
+		report.println(String.format("Writes per LOOK      %8.2f", (double) looksWrites / LOOKS));
+		report.println(String.format("Bytes per write      %8.1f", (double) looksWritten
+				/ looksWrites));
+		report.println(String.format("Bytes per LOOK       %8.1f", (double) looksWritten / LOOKS));
+		System.exit(0);
+	}
+
+	/**
+	 * Sends LOOKs one at a time, as a client waiting for each reply would
+	 */
+	private static void send(PrintWriter out, int looks) throws InterruptedException {
+		for (int i = 0; i < looks; i++) {
+			final long before = written.get();
+			out.println("LOOK");
+			awaitReply(before);
+		}
+	}
+
+	/**
+	 * Waits until the server has written something since it had written the
+	 * bytes given, the client has read all of it, and nothing more has been
+	 * written for a moment
+	 */
+	private static void awaitReply(long before) throws InterruptedException {
+		long last = before;
+		while (true) {
+			Thread.sleep(0, 200000);
+			final long sent = written.get();
+			if ((sent > before) && (sent == last) && (sent == read.get())) {
+				return;
+			}
+			last = sent;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+import java.util.Random;
+
+/**
+ * The walkable cells of one game's map which no player is on, from which a
+ * new player's starting cell is chosen. The map's SpawnIndex counts the
+ * walkable cells in each chunk; this takes away the players standing in each
+ * chunk, and is told whenever a player is put on, moved off or taken off a
+ * cell, just like the game's OccupancyIndex.
+ *
+ * A few cells are first picked at random, which on a map with plenty of room
+ * soon finds a free one. Only if they are all taken is the index used. The
+ * free cells in each chunk are kept in a Fenwick tree, so that both changing
+ * a chunk's count and finding the chunk holding the free cell with a given
+ * number take a step for each bit in the number of chunks. A free cell is
+ * found by picking a number below the total and counting through that one
+ * chunk, so placing a player never takes longer than that however crowded
+ * the map is. Every free cell is equally likely either way.
+ */
+public class FreeCellIndex {
+	// The number of random cells tried before the index is used
+	private static final int RANDOM_TRIES = 8;
+
+	private final Map map;
+	private final SpawnIndex spawns;
+
+	// The Fenwick tree of free cells in each chunk, indexed from 1, or null
+	// until the map's walkable cells are first needed
+	private int[] tree = null;
+
+	// The largest power of two no greater than the number of chunks
+	private int topBit;
+
+	// The number of free cells on the whole map
+	private int free;
+
+	/**
+	 * @param map
+	 *            the game's map
+	 */
+	public FreeCellIndex(Map map) {
+		this.map = map;
+		this.spawns = map.getSpawnIndex();
+	}
+
+	/**
+	 * @return the number of walkable cells nobody is on
+	 */
+	public int size() {
+		tree();
+		return this.free;
+	}
+
+	/**
+	 * Notes that a player is now on a cell, which must be walkable and free
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 */
+	public void occupy(int cell) {
+		add(SpawnIndex.chunkOf(this.map, cell), -1);
+	}
+
+	/**
+	 * Notes that a player has left a cell
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 */
+	public void vacate(int cell) {
+		add(SpawnIndex.chunkOf(this.map, cell), 1);
+	}
+
+	/**
+	 * Picks a walkable cell which nobody is on, with every such cell equally
+	 * likely
+	 *
+	 * @param random
+	 *            where to get the random number from
+	 * @param occupancy
+	 *            who is on each cell, which must agree with this index
+	 * @return the index of the cell, or -1 if there are no free cells
+	 */
+	public int randomCell(Random random, OccupancyIndex occupancy) {
+		final int[] tree = tree();
+		if (this.free == 0) {
+			return -1;
+		}
+
+		// Any cell is as likely to be tried as any other, so a free cell found
+		// this way is too
+		final int width = this.map.getMapWidth();
+		final int cells = width * this.map.getMapHeight();
+		for (int i = 0; i < RANDOM_TRIES; i++) {
+			final int cell = random.nextInt(cells);
+			if (this.map.isWalkable(cell % width, cell / width)
+					&& (occupancy.get(cell) == -1)) {
+				return cell;
+			}
+		}
+
+		int rank = random.nextInt(this.free);
+
+		// Walk down the tree to the chunk holding the free cell with that
+		// number, taking off the cells in the chunks passed over
+		int chunk = 0;
+		for (int bit = this.topBit; bit > 0; bit >>>= 1) {
+			final int next = chunk + bit;
+			if ((next < tree.length) && (tree[next] <= rank)) {
+				chunk = next;
+				rank -= tree[next];
+			}
+		}
+		return SpawnIndex.freeCell(this.map, chunk, rank, occupancy);
+	}
+
+	private void add(int chunk, int change) {
+		final int[] tree = tree();
+		for (int i = chunk + 1; i < tree.length; i += i & -i) {
+			tree[i] += change;
+		}
+		this.free += change;
+	}
+
+	/**
+	 * @return the tree, building it from the map's walkable cells the first
+	 *         time, when nobody is on the map yet
+	 */
+	private int[] tree() {
+		if (this.tree != null) {
+			return this.tree;
+		}
+
+		final int chunks = this.spawns.chunks(this.map);
+		final int[] tree = new int[chunks + 1];
+		for (int i = 1; i <= chunks; i++) {
+			tree[i] += this.spawns.walkableIn(this.map, i - 1);
+			final int parent = i + (i & -i);
+			if (parent <= chunks) {
+				tree[parent] += tree[i];
+			}
+		}
+		this.topBit = Integer.highestOneBit(Math.max(chunks, 1));
+		this.free = this.spawns.walkableCells(this.map);
+		this.tree = tree;
+		return tree;
+	}
+}
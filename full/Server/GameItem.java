@@ -1,4 +1,4 @@
-
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class to represent the items on the map.
@@ -9,6 +9,34 @@
  */
 
 public abstract class GameItem {
+	// The most kinds of item there can be, so that a set of them fits in a long
+	public static final int MAX_TYPES = Long.SIZE;
+
+	// Each subclass is numbered the first time one is made
+	private static final AtomicInteger typeCount = new AtomicInteger();
+	private static final ClassValue<Integer> typeIds = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			final int typeId = typeCount.getAndIncrement();
+			if (typeId >= MAX_TYPES) {
+				throw new IllegalStateException("too many kinds of item");
+			}
+			return typeId;
+		}
+	};
+
+	private final int typeId = typeIds.get(getClass());
+
+	/**
+	 * Returns a small number identifying the kind of item, which is the same
+	 * for every item of the same class, e.g. every sword.
+	 * 
+	 * @return a number from zero to MAX_TYPES - 1
+	 */
+	public final int typeId() {
+		return this.typeId;
+	}
+
 	/**
 	 * Process the action of picking up an item.
 	 * 
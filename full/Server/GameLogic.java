@@ -1,24 +1,108 @@
 import java.io.FileNotFoundException;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * This class controls the game logic and interaction between players. Caution:
- * not thread-safe, but will need to be made so for a networked game.
+ * not thread-safe on its own. Networked users must hold the lock returned by
+ * getLock() while they call into the game: the read lock is enough for the
+ * views (clientLook, clientRenderHint and clientShout), and anything else needs
+ * the write lock.
  */
 public class GameLogic {
 	Map map;
 
+	// Guards every call into the game from a network thread. Readers may share it,
+	// so LOOKs from many players run at once, while moves and pickups run alone.
+	// This is used instead of synchronizing on the game so that virtual threads
+	// are not pinned.
+	private final StampedLock lock = new StampedLock();
+
 	// Has a player won already?
 	private boolean playerWon = false;
 
 	private final List<Player> players;
 
+	// The cells whose contents have changed since changes were last sent out,
+	// either because an item was picked up or because a player arrived or left
+	private final Set<Location> changedCells = new LinkedHashSet<Location>();
+
+	// The players whose whole view has changed since changes were last sent
+	// out, e.g. because they moved or their AP changed. They are told to LOOK
+	// again rather than being sent the changed cells.
+	private final Set<Integer> changedViews = new HashSet<Integer>();
+
 	// The current player's turn, -1 indicates game not started
 	private int currentPlayer = -1;
 
+	// The ID of the player on each occupied cell, by the cell's index. This is
+	// kept up to date by movePlayer so that finding who is on a cell doesn't
+	// mean checking every player, and it only grows with the number of
+	// players, so a game on a huge map costs no more than one on a small map.
+	private final OccupancyIndex occupancy = new OccupancyIndex();
+
+	// The walkable cells nobody is on, which new players are placed on. This
+	// is kept up to date alongside the occupancy index.
+	private final FreeCellIndex freeCells;
+
+	// Picks where new players start
+	private final Random random = new Random();
+
+	// Whether the server should close when the last player leaves, which it
+	// shouldn't if other games are being played in it
+	private boolean exitWhenEmpty = true;
+
+	// How long each player has to take their turn before it is ended for them,
+	// or zero for no limit
+	private long turnTimeoutMs = 0;
+
+	// Ends the current turn when its time is up, or null if there is no limit
+	private TimingWheel.Timeout turnTimeout = null;
+
+	// Counts the turns started, so that a deadline which fires just as its turn
+	// is ended some other way does nothing
+	private long turnNumber = 0;
+
+	// How long each tick lasts when every player takes their turn at once, or
+	// zero if players take turns one after another
+	private long tickMs = 0;
+
+	// The MOVEs and PICKUPs each player has sent this tick, which are carried
+	// out together when it ends. Each is stored as the direction of the move,
+	// or null for a pickup.
+	private final List<List<CompassDirection>> tickActions = new ArrayList<List<CompassDirection>>();
+
+	// The players who have finished their turn this tick
+	private final Set<Integer> finishedPlayers = new HashSet<Integer>();
+
+	// Whether walls block the players' view
+	private boolean lineOfSight = false;
+
+	// Runs work which the game starts by itself, such as ending a turn that has
+	// run out of time. By default this takes the write lock, but a game run by a
+	// GameLoop must be given the loop instead.
+	private Executor taskExecutor = task -> {
+		final long stamp = this.lock.writeLock();
+		try {
+			task.run();
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	};
+
+	// How long after the winning move the result is announced, so that clients
+	// have time to show the final state of the map
+	private static final long WIN_ANNOUNCEMENT_DELAY_MS = 1000;
+
 	/**
 	 * Constructor that specifies the map which the game should be played on.
 	 *
@@ -29,7 +113,9 @@ public class GameLogic {
 	 */
 	public GameLogic(String mapFile) throws FileNotFoundException,
 			ParseException {
-		this.map = new Map(mapFile);
+		// Games on the same map share its terrain
+		this.map = MapRegistry.getMap(mapFile);
+		this.freeCells = new FreeCellIndex(this.map);
 
 		// Check if there is enough gold to win
 		if (this.map.remainingGold() < this.map.getGoal()) {
@@ -40,6 +126,61 @@ public class GameLogic {
 		this.players = new ArrayList<Player>();
 	}
 
+	/**
+	 * Sets whether the whole server closes when the last player leaves this
+	 * game. It does by default.
+	 */
+	public void setExitWhenEmpty(boolean exitWhenEmpty) {
+		this.exitWhenEmpty = exitWhenEmpty;
+	}
+
+	/**
+	 * Sets how long each player has to take their turn. When the time is up
+	 * their turn is ended for them, as if they had sent ENDTURN. There is no
+	 * limit by default.
+	 *
+	 * @param turnTimeoutMs
+	 *            the time limit in milliseconds, or zero for no limit
+	 */
+	public void setTurnTimeout(long turnTimeoutMs) {
+		this.turnTimeoutMs = turnTimeoutMs;
+	}
+
+	/**
+	 * Makes every player take their turn at the same time. Each tick, every
+	 * player is sent STARTTURN and may send as many MOVEs and PICKUPs as they
+	 * have AP. These are answered straight away, but only carried out when the
+	 * tick ends, which is either when its time is up or when everyone has run
+	 * out of AP or sent ENDTURN. Any that can't be carried out are reported to
+	 * the player in a message. The turn time limit doesn't apply in this mode.
+	 * Players take turns one after another by default.
+	 *
+	 * @param tickMs
+	 *            how long each tick lasts in milliseconds, or zero to take
+	 *            turns one after another
+	 */
+	public void setTickLength(long tickMs) {
+		this.tickMs = tickMs;
+	}
+
+	/**
+	 * Sets whether walls block the players' view. If they do, a player only
+	 * sees the cells within their look distance which they have a line of
+	 * sight to. By default players can see through walls.
+	 */
+	public void setLineOfSight(boolean lineOfSight) {
+		this.lineOfSight = lineOfSight;
+	}
+
+	/**
+	 * Sets what runs the work the game starts by itself, which must be the
+	 * same thing that runs the clients' commands. Games run by a GameLoop must
+	 * be given the loop, and other games take the write lock.
+	 */
+	public void setTaskExecutor(Executor taskExecutor) {
+		this.taskExecutor = taskExecutor;
+	}
+
 	/**
 	 * Adds a new player to the game.
 	 *
@@ -51,12 +192,30 @@ public class GameLogic {
 	 */
 	public int addPlayer(PlayerListener player) {
 		final int playerID = this.players.size();
+		final Location location = generateRandomStartLocation();
 
-		this.players.add(new Player("Player " + playerID,
-				generateRandomStartLocation(), player));
+		this.players.add(new Player("Player " + playerID, location, player));
+		this.occupancy.put(cellIndex(location), playerID);
+		this.freeCells.occupy(cellIndex(location));
+		this.changedCells.add(location);
+		this.changedViews.add(playerID);
+		this.tickActions.add(new ArrayList<CompassDirection>());
 
 		if (this.players.size() == 1) {
 			startNewGame();
+		} else if ((this.tickMs > 0) && !this.playerWon) {
+			if (this.turnTimeout == null) {
+				// Everyone else had left, so the ticks had stopped
+				startTick();
+			} else {
+				// Join in with the tick that is under way
+				this.players.get(playerID).startTurn();
+			}
+		} else if (!this.playerWon && this.players.get(this.currentPlayer).isDead()) {
+			// Everyone else had left, so nobody holds the turn and it would
+			// never be passed on
+			this.currentPlayer = playerID;
+			startTurn();
 		}
 		clientChange();
 		return playerID;
@@ -68,7 +227,13 @@ public class GameLogic {
 	 */
 	public void removePlayer(int playerID) {
 		try {
-			this.players.get(playerID).kill();
+			final Player player = this.players.get(playerID);
+			this.changedCells.add(player.getLocation());
+			if (!player.isDead()) {
+				this.occupancy.remove(cellIndex(player.getLocation()));
+				this.freeCells.vacate(cellIndex(player.getLocation()));
+			}
+			player.kill();
 		} catch (IndexOutOfBoundsException e) {}
 		boolean lastPlayer = true;
 		for (Player player : this.players) {
@@ -76,9 +241,22 @@ public class GameLogic {
 				lastPlayer = false;
 			}
 		}
-		if (lastPlayer) {
+		if (lastPlayer && !this.exitWhenEmpty) {
+			System.out.println("Last player has left the game.");
+		} else if (lastPlayer) {
 			System.out.println("Last player has left the game. Server closing.");
+			if (this.map.getChunks() != null) {
+				System.out.println("Map chunks: " + this.map.getChunks());
+			}
+			if (this.lineOfSight) {
+				System.out.println("Line of sight: " + this.map.getLineOfSight());
+			}
 			System.exit(0);
+		} else if (this.tickMs > 0) {
+			// The tick may have only been waiting for this player
+			if (allPlayersFinished()) {
+				endTick();
+			}
 		} else if (this.currentPlayer == playerID) {
 			// Advance turn to handle death on player's turn
 			advanceTurn(playerID);
@@ -100,7 +278,11 @@ public class GameLogic {
 
 		this.currentPlayer = 0;
 
-		startTurn();
+		if (this.tickMs > 0) {
+			startTick();
+		} else {
+			startTurn();
+		}
 	}
 
 	public boolean isGameOver() {
@@ -125,87 +307,116 @@ public class GameLogic {
 
 	/**
 	 * Handles the client message LOOK Shows the portion of the map that the
-	 * player can currently see.
+	 * player can currently see. The reply is written straight into the
+	 * caller's buffer, and no objects are created along the way.
 	 *
-	 * @return the part of the map that the player can currently see.
+	 * @param reply
+	 *            the buffer to add the part of the map that the player can
+	 *            currently see to
 	 */
-	public String clientLook(int playerID) {
+	public void clientLook(int playerID, ReplyBuffer reply) {
 		assertPlayerExists(playerID);
 		final Player player = this.players.get(playerID);
 
-		// Work out how far the player can see
-		final int distance = player.lookDistance();
+		// Work out which cells the player can see
+		final ViewStencil stencil = player.viewStencil();
+		final int distance = stencil.getDistance();
+		final int playerCol = player.getLocation().getCol();
+		final int playerRow = player.getLocation().getRow();
+		final LineOfSight.View sight = sightOf(player);
 
-		String lookReply = "";
 		// Iterate through the rows.
 		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
-			String line = "";
+			final int row = playerRow + rowOffset;
+			final int halfWidth = stencil.halfWidth(rowOffset);
 
-			// Iterate through the columns.
-			for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
+			// The cells either side of the visible ones are outside the FoV, so
+			// we don't know what they are.
+			stencil.appendHidden(reply, rowOffset);
 
-				// Work out the location
-				final Location location = player.getLocation().atOffset(
-						colOffset, rowOffset);
+			// Iterate through the visible columns.
+			for (int colOffset = -halfWidth; colOffset <= halfWidth; ++colOffset) {
+				final int col = playerCol + colOffset;
 
 				char content = '?';
-				if (!player.canSeeTile(rowOffset, colOffset)) {
-					// It's outside the FoV so we don't know what it is.
+				if ((sight != null) && !sight.canSee(rowOffset, colOffset)) {
+					// There's a wall in the way, so we don't know what it is.
 					content = 'X';
-				} else if (!this.map.insideMap(location)) {
+				} else if (!this.map.insideMap(col, row)) {
 					// It's outside the map, so just call it a wall.
 					content = '#';
-				} else if (otherPlayerOnTile(location, playerID)) {
+				} else if (getOtherPlayerID(col, row, playerID) != -1) {
 					content = 'P';
 				} else {
 					// Look up and see what's on the map
-					content = this.map.getMapCell(location).toChar();
+					content = this.map.getMapChar(col, row);
 				}
 
 				// Add to the line
-				line += content;
+				reply.append(content);
 			}
+			stencil.appendHidden(reply, rowOffset);
 
-			// Send a line of the look message
-			lookReply += line + "\n";
+			// End a line of the look message
+			reply.append('\n');
 		}
-
-		return lookReply;
 	}
 
 	/**
 	 * Handles the server message RENDERHINT. Sends a line telling the client which direction each
 	 * player in their lookreply is facing, which direction they are facing, and how much health and
-	 * AP they have left.
+	 * AP they have left. Like clientLook, this writes into the caller's buffer without creating any
+	 * objects.
 	 */
-	public String clientRenderHint(int playerID) {
+	public void clientRenderHint(int playerID, ReplyBuffer reply) {
 		assertPlayerExists(playerID);
 
-		String renderHint = "";
-		int lines = 0;
 		final Player player = this.players.get(playerID);
 
-		// Work out how far the player can see
-		final int distance = player.lookDistance();
+		// Work out which cells the player can see
+		final ViewStencil stencil = player.viewStencil();
+		final int distance = stencil.getDistance();
+		final int playerCol = player.getLocation().getCol();
+		final int playerRow = player.getLocation().getRow();
+		final LineOfSight.View sight = sightOf(player);
+
+		// The number of lines comes first, so count the other players before
+		// writing anything. The player themselves always has a line.
+		int lines = 1;
+		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
+			final int halfWidth = stencil.halfWidth(rowOffset);
+			for (int colOffset = -halfWidth; colOffset <= halfWidth; ++colOffset) {
+				if (((sight == null) || sight.canSee(rowOffset, colOffset))
+						&& (getOtherPlayerID(playerCol + colOffset, playerRow + rowOffset, playerID) != -1)) {
+					lines++;
+				}
+			}
+		}
+		reply.append(' ').append(lines).append('\n');
+
 		// Iterate through the rows.
 		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
+			final int halfWidth = stencil.halfWidth(rowOffset);
 
-			// Iterate through the columns.
-			for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
-				final Location location = player.getLocation().atOffset(colOffset, rowOffset);
-				if (otherPlayerOnTile(location, playerID)) {
-					int otherPlayerID = getOtherPlayerID(location, playerID);
-					String direction = this.players.get(otherPlayerID).getLastDirection();
-					renderHint += colOffset + " " + rowOffset + " " + direction + "\n";
-					lines++;
+			// Iterate through the visible columns.
+			for (int colOffset = -halfWidth; colOffset <= halfWidth; ++colOffset) {
+				if ((sight != null) && !sight.canSee(rowOffset, colOffset)) {
+					continue;
+				}
+				final int otherPlayerID = getOtherPlayerID(playerCol + colOffset,
+						playerRow + rowOffset, playerID);
+				if (otherPlayerID != -1) {
+					final char direction = this.players.get(otherPlayerID).getLastDirectionChar();
+					reply.append(colOffset).append(' ').append(rowOffset).append(' ')
+							.append(direction).append('\n');
 				} else if ((colOffset == 0) && (rowOffset == 0)) {
-					String direction = player.getLastDirection();
-					renderHint += colOffset + " " + rowOffset + " " + direction + " " + player.getHp() + " " +  player.remainingAp() + "\n";
-					lines++;
+					final char direction = player.getLastDirectionChar();
+					reply.append(colOffset).append(' ').append(rowOffset).append(' ')
+							.append(direction).append(' ').append(player.getHp()).append(' ')
+							.append(player.remainingAp()).append('\n');
 				}
 			}
 		}
-		return " " + lines + "\n" + renderHint;
 	}
 
 	/**
@@ -224,6 +435,10 @@ public class GameLogic {
 		assertPlayerExists(playerID);
 
 		ensureNoWinner();
+		if (this.tickMs > 0) {
+			queueTickAction(playerID, direction);
+			return;
+		}
 		assertPlayersTurn(playerID);
 		assertPlayerAP(playerID);
 
@@ -247,11 +462,9 @@ public class GameLogic {
 		// Costs one action point
 		player.decrementAp();
 
-		// Move the player
-		player.setLocation(location);
-		player.setLastDirection(direction);
-		clientChange();
+		stepPlayer(playerID, location, direction);
 		advanceTurn(playerID);
+		clientChange();
 		return;
 	}
 
@@ -317,9 +530,22 @@ public class GameLogic {
 	public void clientPickup(int playerID) throws CommandException {
 		assertPlayerExists(playerID);
 		ensureNoWinner();
+		if (this.tickMs > 0) {
+			queueTickAction(playerID, null);
+			return;
+		}
 		assertPlayersTurn(playerID);
 		assertPlayerAP(playerID);
 
+		pickup(playerID);
+		advanceTurn(playerID);
+		clientChange();
+	}
+
+	/**
+	 * Gives the player the item on their cell, and removes it from the map
+	 */
+	private void pickup(int playerID) throws CommandException {
 		final Player player = this.players.get(playerID);
 
 		final Tile playersTile = this.map.getMapCell(player.getLocation());
@@ -338,8 +564,8 @@ public class GameLogic {
 
 		player.giveItem(item);
 		playersTile.removeItem();
-		clientChange();
-		advanceTurn(playerID);
+		this.changedCells.add(player.getLocation());
+		this.changedViews.add(playerID);
 	}
 
 	/**
@@ -355,10 +581,80 @@ public class GameLogic {
 		}
 	}
 
+	/**
+	 * Sends out everything that has changed since this was last called. A
+	 * player whose own view has changed is told to LOOK again. Every other
+	 * player is only sent the changed cells that they can see, and nothing at
+	 * all if they can't see any of them.
+	 */
 	public void clientChange() {
-		for (final Player player : this.players) {
-			player.sendChange();
+		for (int playerID = 0; playerID < this.players.size(); playerID++) {
+			final Player player = this.players.get(playerID);
+
+			if (player.isDead()) {
+				// The player has left the game
+				continue;
+			}
+
+			if (this.changedViews.contains(playerID)) {
+				player.sendChange();
+			} else {
+				final String delta = clientDelta(playerID);
+				if (delta != null) {
+					player.sendDelta(delta);
+				}
+			}
+		}
+
+		this.changedCells.clear();
+		this.changedViews.clear();
+	}
+
+	/**
+	 * Works out the part of a DELTA message for one player. There is a line for
+	 * each changed cell the player can see, giving its offset from the player
+	 * and what is now there, in the same form as LOOKREPLY. A cell holding
+	 * another player also gives the direction they face, as in RENDERHINT.
+	 *
+	 * @return the number of lines and the lines themselves, or null if the
+	 *         player can't see any of the changes
+	 */
+	private String clientDelta(int playerID) {
+		final Player player = this.players.get(playerID);
+		final ViewStencil stencil = player.viewStencil();
+		final LineOfSight.View sight = sightOf(player);
+
+		final StringBuilder delta = new StringBuilder();
+		int lines = 0;
+		for (final Location location : this.changedCells) {
+			final int colOffset = location.getCol() - player.getLocation().getCol();
+			final int rowOffset = location.getRow() - player.getLocation().getRow();
+
+			if (!stencil.canSee(rowOffset, colOffset)
+					|| ((sight != null) && !sight.canSee(rowOffset, colOffset))
+					|| ((colOffset == 0) && (rowOffset == 0))
+					|| !this.map.insideMap(location)) {
+				// The player doesn't see this cell, or it is their own
+				continue;
+			}
+
+			if (otherPlayerOnTile(location, playerID)) {
+				final int otherPlayerID = getOtherPlayerID(location, playerID);
+				final String direction = this.players.get(otherPlayerID).getLastDirection();
+				delta.append(colOffset).append(' ').append(rowOffset).append(" P ")
+						.append(direction).append('\n');
+			} else {
+				delta.append(colOffset).append(' ').append(rowOffset).append(' ')
+						.append(this.map.getMapChar(location.getCol(), location.getRow()))
+						.append('\n');
+			}
+			lines++;
+		}
+
+		if (lines == 0) {
+			return null;
 		}
+		return delta.insert(0, " " + lines + "\n").toString();
 	}
 
 	/**
@@ -368,7 +664,15 @@ public class GameLogic {
 	 */
 	public void clientEndTurn(int playerID) throws CommandException {
 		assertPlayerExists(playerID);
+		if (this.tickMs > 0) {
+			if (this.finishedPlayers.contains(playerID)) {
+				throw new CommandException("not your turn");
+			}
+			finishTickTurn(playerID);
+			return;
+		}
 		this.players.get(playerID).endTurn();
+		this.changedViews.add(playerID);
 
 		// Advance to the next alive player
 		if (playerID == currentPlayer) {
@@ -410,10 +714,28 @@ public class GameLogic {
 			throw new CommandException("cannot walk on this tile");
 		}
 
-		this.players.get(playerID).setLocation(location);
+		if (otherPlayerOnTile(location, playerID)) {
+			throw new CommandException("another player is on this tile");
+		}
+
+		final Player player = this.players.get(playerID);
+		this.changedCells.add(player.getLocation());
+		this.changedCells.add(location);
+		this.changedViews.add(playerID);
+		movePlayer(playerID, location);
 		clientChange();
 	}
 
+	/**
+	 * Returns the lock which must be held by any thread calling into the game.
+	 * The lock is not reentrant, so it must be taken once around a whole command.
+	 *
+	 * @return the game's lock
+	 */
+	public StampedLock getLock() {
+		return this.lock;
+	}
+
 	/**
 	 * Passes the goal back
 	 *
@@ -432,73 +754,101 @@ public class GameLogic {
 	}
 
 	/**
-	 * Generates a randomised start location
+	 * Picks a random walkable cell which no other player is on, with every
+	 * such cell equally likely. The cell is found straight from the free cell
+	 * index, so it takes no longer on a crowded map than on an empty one.
 	 *
-	 * @return a random location where a player can start
+	 * @return the location for a new player to start at
 	 */
 	private Location generateRandomStartLocation() {
-		if (!atLeastOneNonWallLocation()) {
+		final int cell = this.freeCells.randomCell(this.random, this.occupancy);
+		if (cell == -1) {
 			throw new IllegalStateException(
 					"There is no free tile available for the player to be placed");
 		}
+		return new Location(cell % this.map.getMapWidth(), cell
+				/ this.map.getMapWidth());
+	}
 
-		while (true) {
-			// Generate a random location
-			final Random random = new Random();
-			final int randomRow = random.nextInt(this.map.getMapHeight());
-			final int randomCol = random.nextInt(this.map.getMapWidth());
-
-			final Location location = new Location(randomCol, randomRow);
-
-			if (this.map.getMapCell(location).isWalkable()
-					&& !otherPlayerOnTile(location, -1)) {
-				// If it's not a wall then we can put them there
-				return location;
-			}
-		}
+	private boolean otherPlayerOnTile(Location location, int currentPlayerID) {
+		return getOtherPlayerID(location, currentPlayerID) != -1;
 	}
 
 	/**
-	 * Searches a possible tile to use by the player, i.e. non-wall. The map is
-	 * traversed from (0,0) to (maxY,MaxX).
+	 * Looks up who is on a cell in the occupancy index.
 	 *
-	 * @return true if there is at least one non-wall location, false otherwise
+	 * @return the ID of the player on the cell, or -1 if the cell is empty,
+	 *         outside the map, or holds the current player
 	 */
-	private boolean atLeastOneNonWallLocation() {
-		for (int x = 0; x < this.map.getMapWidth(); x++) {
-			for (int y = 0; y < this.map.getMapHeight(); y++) {
+	private int getOtherPlayerID(Location location, int currentPlayerID) {
+		return getOtherPlayerID(location.getCol(), location.getRow(), currentPlayerID);
+	}
 
-				if (this.map.getMapCell(new Location(x, y)).isWalkable()) {
-					// If it's not a wall then we can put them there
-					return true;
-				}
-			}
+	/**
+	 * Looks up who is on a cell in the occupancy index, without needing a
+	 * Location.
+	 *
+	 * @return the ID of the player on the cell, or -1 if the cell is empty,
+	 *         outside the map, or holds the current player
+	 */
+	private int getOtherPlayerID(int col, int row, int currentPlayerID) {
+		if (!this.map.insideMap(col, row)) {
+			return -1;
 		}
 
-		return false;
+		final int otherPlayerID = this.occupancy.get(row * this.map.getMapWidth() + col);
+		if (otherPlayerID == currentPlayerID) {
+			return -1;
+		}
+		return otherPlayerID;
 	}
 
-	private boolean otherPlayerOnTile(Location location, int currentPlayerID) {
-		for (int otherPlayerID = 0; otherPlayerID < this.players.size(); otherPlayerID++) {
-			if ((otherPlayerID != currentPlayerID)
-					&& this.players.get(otherPlayerID).getLocation()
-							.equals(location)) {
-				return true;
-			}
+	/**
+	 * @return the cells the player has a line of sight to, or null if walls
+	 *         don't block the view
+	 */
+	private LineOfSight.View sightOf(Player player) {
+		if (!this.lineOfSight) {
+			return null;
 		}
+		final LineOfSight.View sight = this.map.getLineOfSight().view(this.map,
+				player.getLocation().getCol(), player.getLocation().getRow(),
+				player.lookDistance(), player.getLastSight());
+		player.setLastSight(sight);
+		return sight;
+	}
+
+	/**
+	 * Moves a player one step in a direction, marking the cells and their view
+	 * as changed
+	 */
+	private void stepPlayer(int playerID, Location location, CompassDirection direction) {
+		final Player player = this.players.get(playerID);
+		this.changedCells.add(player.getLocation());
+		this.changedCells.add(location);
+		this.changedViews.add(playerID);
+		movePlayer(playerID, location);
+		player.setLastDirection(direction);
+	}
 
-		return false;
+	/**
+	 * Moves a player to a new location, keeping the occupancy index in step.
+	 * Every move of a living player must go through here.
+	 */
+	private void movePlayer(int playerID, Location location) {
+		final Player player = this.players.get(playerID);
+		this.occupancy.remove(cellIndex(player.getLocation()));
+		this.freeCells.vacate(cellIndex(player.getLocation()));
+		this.occupancy.put(cellIndex(location), playerID);
+		this.freeCells.occupy(cellIndex(location));
+		player.setLocation(location);
 	}
 
-	private int getOtherPlayerID(Location location, int currentPlayerID) {
-		for (int otherPlayerID = 0; otherPlayerID < this.players.size(); otherPlayerID++) {
-			if ((otherPlayerID != currentPlayerID)
-					&& this.players.get(otherPlayerID).getLocation()
-							.equals(location)) {
-				return otherPlayerID;
-			}
-		}
-		return -1;
+	/**
+	 * @return the position of a location inside the map in the occupancy index
+	 */
+	private int cellIndex(Location location) {
+		return location.getRow() * this.map.getMapWidth() + location.getCol();
 	}
 
 	/**
@@ -532,7 +882,8 @@ public class GameLogic {
 	 *
 	 */
 	private void assertPlayersTurn(int playerID) throws CommandException {
-		if (playerID != this.currentPlayer) {
+		// Everyone's turn is at the same time when playing in ticks
+		if ((this.tickMs == 0) && (playerID != this.currentPlayer)) {
 			throw new CommandException("not your turn");
 		}
 	}
@@ -551,6 +902,68 @@ public class GameLogic {
 
 	private void startTurn() {
 		this.players.get(this.currentPlayer).startTurn();
+		this.changedViews.add(this.currentPlayer);
+
+		// Start the clock for the new turn
+		scheduleTurnTimeout(this.turnTimeoutMs);
+	}
+
+	/**
+	 * Counts the start of a new turn or tick, and schedules its end after the
+	 * given time
+	 *
+	 * @param delayMs
+	 *            how long the turn or tick lasts, or zero if it has no limit
+	 */
+	private void scheduleTurnTimeout(long delayMs) {
+		cancelTurnTimeout();
+		final long turn = ++this.turnNumber;
+		if (delayMs > 0) {
+			this.turnTimeout = TimingWheel.getShared().schedule(
+					() -> this.taskExecutor.execute(() -> turnTimedOut(turn)),
+					delayMs);
+		}
+	}
+
+	private void cancelTurnTimeout() {
+		if (this.turnTimeout != null) {
+			this.turnTimeout.cancel();
+			this.turnTimeout = null;
+		}
+	}
+
+	/**
+	 * Ends the current player's turn because they have run out of time. This
+	 * is run by the task executor, so it has the game to itself.
+	 *
+	 * @param turn
+	 *            the number of the turn whose time is up
+	 */
+	private void turnTimedOut(long turn) {
+		// The turn may have been ended while the deadline was being handed over
+		if ((turn != this.turnNumber) || this.playerWon) {
+			return;
+		}
+		this.turnTimeout = null;
+
+		if (this.tickMs > 0) {
+			endTick();
+			return;
+		}
+
+		// Nobody is left to take the next turn
+		final Player player = this.players.get(this.currentPlayer);
+		if (player.isDead()) {
+			return;
+		}
+
+		try {
+			clientEndTurn(this.currentPlayer);
+		} catch (CommandException e) {
+			System.out.println(e.getMessage());
+			// can't happen, as it is always the current player's turn
+		}
+		clientChange();
 	}
 
 	/**
@@ -569,23 +982,8 @@ public class GameLogic {
 		final Player player = this.players.get(playerID);
 
 		// Check if the player has won
-		if ((player.getGold() >= this.map.getGoal())
-				&& (this.map.getMapCell(player.getLocation()).isExit())) {
-
-			// Player should not be able to move if they have won
-			assert (!this.playerWon);
-			this.playerWon = true;
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {}
-			player.win();
-
-			List<Player> losingPlayers = this.players;
-			for (Player losingPlayer : losingPlayers) {
-				if (losingPlayer != this.players.get(playerID)) {
-					losingPlayer.lose();
-				}
-			}
+		if (hasWon(player)) {
+			declareWinner(player);
 
 		} else {
 			if ((player.remainingAp() == 0) || player.isDead()) {
@@ -600,4 +998,249 @@ public class GameLogic {
 		}
 	}
 
+	/**
+	 * @return whether the player is on an exit with enough gold to win
+	 */
+	private boolean hasWon(Player player) {
+		return (player.getGold() >= this.map.getGoal())
+				&& this.map.getMapCell(player.getLocation()).isExit();
+	}
+
+	/**
+	 * Ends the game with the player as the winner
+	 */
+	private void declareWinner(Player player) {
+		// Player should not be able to move if they have won
+		assert (!this.playerWon);
+		this.playerWon = true;
+		cancelTurnTimeout();
+
+		// Announce the result later, rather than sleeping with the game held.
+		// Only the wait happens on the timing wheel; the announcement itself
+		// is handed back to whatever runs the game, like a turn timing out.
+		TimingWheel.getShared().schedule(
+				() -> this.taskExecutor.execute(() -> announceResult(player)),
+				WIN_ANNOUNCEMENT_DELAY_MS);
+	}
+
+	/**
+	 * Tells the winner they have won and everybody else they have lost.
+	 * Players who have left since the winning move are skipped.
+	 */
+	private void announceResult(Player winner) {
+		if (!winner.isDead()) {
+			winner.win();
+		}
+		for (final Player losingPlayer : this.players) {
+			if ((losingPlayer != winner) && !losingPlayer.isDead()) {
+				losingPlayer.lose();
+			}
+		}
+	}
+
+	/**
+	 * Starts a tick, in which every player still in the game takes their turn
+	 */
+	private void startTick() {
+		this.finishedPlayers.clear();
+		for (int playerID = 0; playerID < this.players.size(); playerID++) {
+			final Player player = this.players.get(playerID);
+			if (!player.isDead()) {
+				player.startTurn();
+				this.changedViews.add(playerID);
+			}
+		}
+		scheduleTurnTimeout(this.tickMs);
+	}
+
+	/**
+	 * Adds a MOVE or PICKUP to those to be carried out at the end of the tick.
+	 * It uses up one AP straight away, so the player can't send more than
+	 * they have AP for.
+	 *
+	 * @param direction
+	 *            the direction to move in, or null to pick up
+	 */
+	private void queueTickAction(int playerID, CompassDirection direction)
+			throws CommandException {
+		if (this.finishedPlayers.contains(playerID)) {
+			throw new CommandException("not your turn");
+		}
+		final Player player = this.players.get(playerID);
+		player.decrementAp();
+		this.tickActions.get(playerID).add(direction);
+
+		if (player.remainingAp() == 0) {
+			finishTickTurn(playerID);
+		}
+	}
+
+	/**
+	 * Ends a player's turn for this tick, and the tick itself if nobody else is
+	 * still taking theirs
+	 */
+	private void finishTickTurn(int playerID) {
+		this.players.get(playerID).endTurn();
+		this.finishedPlayers.add(playerID);
+		if (allPlayersFinished()) {
+			endTick();
+		}
+	}
+
+	private boolean allPlayersFinished() {
+		for (int playerID = 0; playerID < this.players.size(); playerID++) {
+			if (!this.players.get(playerID).isDead()
+					&& !this.finishedPlayers.contains(playerID)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Carries out everything sent during the tick, sends out the changes, and
+	 * starts the next tick unless the game is over or everyone has left
+	 */
+	private void endTick() {
+		cancelTurnTimeout();
+		resolveTick();
+
+		if (!this.playerWon) {
+			boolean anyPlayers = false;
+			for (int playerID = 0; playerID < this.players.size(); playerID++) {
+				final Player player = this.players.get(playerID);
+				if (player.isDead()) {
+					continue;
+				}
+				anyPlayers = true;
+				if (!this.finishedPlayers.contains(playerID)) {
+					player.endTurn();
+				}
+			}
+			if (anyPlayers) {
+				startTick();
+			}
+		}
+		clientChange();
+	}
+
+	/**
+	 * Carries out the MOVEs and PICKUPs sent during the tick. Every player's
+	 * first action is carried out, then every player's second, and so on. At
+	 * each step the pickups go first, then the moves.
+	 *
+	 * Ties are broken by the order players act in, which starts from a
+	 * different player each tick so the same player doesn't always win them.
+	 * An item can only be picked up by the player standing on it, so it is the
+	 * moves which can clash. A player may follow another into the cell they
+	 * leave, but when several players move into the same cell, the first in
+	 * the order gets it, and players can't swap places or move round in a
+	 * circle. The first player in the order on an exit with enough gold wins.
+	 */
+	private void resolveTick() {
+		final int[] order = new int[this.players.size()];
+		final int first = (int) (this.turnNumber % order.length);
+		for (int i = 0; i < order.length; i++) {
+			order[i] = (first + i) % order.length;
+		}
+
+		final List<Integer> pickups = new ArrayList<Integer>();
+		final List<Integer> moves = new ArrayList<Integer>();
+		for (int step = 0; !this.playerWon; step++) {
+			pickups.clear();
+			moves.clear();
+			for (final int playerID : order) {
+				final List<CompassDirection> actions = this.tickActions.get(playerID);
+				if (this.players.get(playerID).isDead() || (step >= actions.size())) {
+					continue;
+				}
+				if (actions.get(step) == null) {
+					pickups.add(playerID);
+				} else {
+					moves.add(playerID);
+				}
+			}
+			if (pickups.isEmpty() && moves.isEmpty()) {
+				break;
+			}
+
+			for (final int playerID : pickups) {
+				try {
+					pickup(playerID);
+				} catch (CommandException e) {
+					this.players.get(playerID).sendMessage("PICKUP failed: " + e.getMessage());
+				}
+			}
+			resolveTickMoves(moves, step);
+
+			for (final int playerID : order) {
+				final Player player = this.players.get(playerID);
+				if (!player.isDead() && hasWon(player)) {
+					declareWinner(player);
+					break;
+				}
+			}
+		}
+
+		for (final List<CompassDirection> actions : this.tickActions) {
+			actions.clear();
+		}
+	}
+
+	/**
+	 * Carries out one step of the tick's moves, in the order given. A player
+	 * moving into a cell which someone else is on waits to see whether they
+	 * move out of it.
+	 *
+	 * @param moves
+	 *            the players moving, in the order they act
+	 * @param step
+	 *            which of each player's actions is being carried out
+	 */
+	private void resolveTickMoves(List<Integer> moves, int step) {
+		// The players waiting for each cell to be left, in the order they act
+		final HashMap<Integer, ArrayDeque<Integer>> waiting = new HashMap<Integer, ArrayDeque<Integer>>();
+
+		for (final int playerID : moves) {
+			final CompassDirection direction = this.tickActions.get(playerID).get(step);
+			final Location location = this.players.get(playerID).getLocation()
+					.atCompassDirection(direction);
+			if (!this.map.insideMap(location)
+					|| !this.map.getMapCell(location).isWalkable()) {
+				this.players.get(playerID).sendMessage("MOVE failed: can't move into a wall");
+				continue;
+			}
+			if (this.occupancy.get(cellIndex(location)) != -1) {
+				waiting.computeIfAbsent(cellIndex(location), cell -> new ArrayDeque<Integer>())
+						.add(playerID);
+				continue;
+			}
+
+			// Move, then let the first player waiting for the cell left behind
+			// follow, and so on down the line
+			int moverID = playerID;
+			while (true) {
+				final Player mover = this.players.get(moverID);
+				final CompassDirection moverDirection = this.tickActions.get(moverID).get(step);
+				final int leftCell = cellIndex(mover.getLocation());
+				stepPlayer(moverID, mover.getLocation().atCompassDirection(moverDirection),
+						moverDirection);
+
+				final ArrayDeque<Integer> followers = waiting.get(leftCell);
+				if ((followers == null) || followers.isEmpty()) {
+					break;
+				}
+				moverID = followers.poll();
+			}
+		}
+
+		// Everyone still waiting was blocked by a player who stayed where they
+		// were, or was moving into them, or got to the cell first
+		for (final ArrayDeque<Integer> blocked : waiting.values()) {
+			for (final int playerID : blocked) {
+				this.players.get(playerID).sendMessage("MOVE failed: can't move into another player");
+			}
+		}
+	}
+
 }
@@ -0,0 +1,158 @@
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class GameLoop implements Runnable, Executor {
+
+	/**
+	 * This class gives a GameLogic a single owner. Instead of every client taking the game's lock,
+	 * clients submit their commands here and one thread runs them in the order they arrived, so the
+	 * game is only ever touched by that thread and turns are handled deterministically. Replies go
+	 * back through each client's own outbound queue, so a slow client never holds up the loop.
+	 *
+	 * A loop either has a thread of its own, or borrows one from a pool of workers shared with other
+	 * loops, as the rooms of a RoomManager do. A loop on a pool runs at most BATCH_SIZE commands
+	 * before handing its worker to the next loop waiting, so a busy game can't starve the others.
+	 *
+	 * Only clients' commands count towards QUEUE_CAPACITY. Work the server starts by itself, such as
+	 * ending a turn that has run out of time or adding and removing players, is always accepted,
+	 * since it comes from threads shared by every game which must never wait for one of them.
+	 */
+
+	private static final int QUEUE_CAPACITY = 1024; // clients' commands waiting before more are
+	// refused
+	private static final int BATCH_SIZE = 64; // commands run on a worker before letting others in
+
+	private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<Runnable>();
+	private final Semaphore capacity = new Semaphore(QUEUE_CAPACITY); // one permit for each client
+	// command that may still be queued, given back when the command starts running
+	private final Thread thread; // this loop's own thread, or null if it runs on the workers
+	private final Executor workers; // the pool this loop runs on, or null if it has its own thread
+	private final AtomicBoolean scheduled = new AtomicBoolean(false); // true while a batch of this
+	// loop's commands is waiting for or running on a worker
+
+	/**
+	 * Creates the loop and starts its thread, which waits for the first command.
+	 */
+	public GameLoop() {
+		workers = null;
+		thread = new Thread(this, "GameLoop");
+		thread.start();
+	}
+
+	/**
+	 * Creates a loop which runs on a pool of worker threads shared with other loops. Only one worker
+	 * runs this loop's commands at a time, so they are still run one after another.
+	 */
+	public GameLoop(Executor localWorkers) {
+		workers = localWorkers;
+		thread = null;
+	}
+
+	/**
+	 * Adds a client's command to the end of the queue. This is where backpressure is applied to a
+	 * client with a thread of its own: if a burst of commands has filled the queue, the caller waits
+	 * here until the loop has caught up, which in turn stops it reading any more from its client.
+	 */
+	public void submit(Runnable command) {
+		try {
+			capacity.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		enqueue(() -> {
+			capacity.release();
+			command.run();
+		});
+	}
+
+	/**
+	 * Adds a client's command to the end of the queue if there is room for it, without waiting. This
+	 * is for the selector thread of an NioServer, which must not wait for any one game.
+	 *
+	 * @return false if the queue is full, in which case the command has not been queued
+	 */
+	public boolean offer(Runnable command) {
+		if (!capacity.tryAcquire()) {
+			return false;
+		}
+		enqueue(() -> {
+			capacity.release();
+			command.run();
+		});
+		return true;
+	}
+
+	/**
+	 * Adds work the server started by itself to the end of the queue. This never waits, however full
+	 * the queue is, so it can be used by the threads shared by every game.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		enqueue(task);
+	}
+
+	private void enqueue(Runnable command) {
+		commands.add(command);
+		if (workers != null) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Runs commands one at a time for as long as the server is up. A command which throws is
+	 * reported and dropped rather than stopping the loop for every other client.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			Runnable command;
+			try {
+				command = commands.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			runCommand(command);
+		}
+	}
+
+	/**
+	 * Hands the loop to a worker, unless it is already waiting for or running on one.
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			workers.execute(this::runBatch);
+		}
+	}
+
+	/**
+	 * Runs on a worker to process the commands waiting, up to BATCH_SIZE of them. If there are more
+	 * left afterwards, the loop goes to the back of the workers' queue behind any other loops.
+	 */
+	private void runBatch() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			final Runnable command = commands.poll();
+			if (command == null) {
+				break;
+			}
+			runCommand(command);
+		}
+		scheduled.set(false);
+		if (!commands.isEmpty()) {
+			// either the batch was full, or a command arrived after the queue was found empty
+			schedule();
+		}
+	}
+
+	private void runCommand(Runnable command) {
+		try {
+			command.run();
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+}
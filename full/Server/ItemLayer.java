@@ -0,0 +1,228 @@
+import java.util.Arrays;
+
+/**
+ * The items lying on a map, kept apart from the walls and floors because only
+ * a small fraction of cells ever hold one. Items are stored by the index of
+ * their cell, as the character which represents them, in a hash table made of
+ * primitive arrays. Looking an item up therefore creates no objects, and an
+ * empty cell costs nothing.
+ *
+ * The number of items of each kind is kept up to date as items are placed and
+ * removed, so counting them takes no time at all.
+ *
+ * A layer can be copied without copying its arrays. Both layers then share
+ * them until either one is changed, when that layer takes its own copy.
+ */
+public class ItemLayer {
+	// Marks an unused slot in the table; no cell has a negative index
+	private static final int EMPTY = -1;
+
+	// The table is grown before it is more than half full
+	private static final int MIN_CAPACITY = 16;
+
+	// The cell index in each slot, or EMPTY
+	private int[] cells;
+
+	// The character of the item in each slot
+	private char[] items;
+
+	// The number of items in the table
+	private int size = 0;
+
+	// The number of items of each kind, by their character. Items are
+	// represented by ASCII letters, so this is small enough to copy freely
+	private static final int CHARACTERS = 128;
+	private int counts[] = new int[CHARACTERS];
+
+	// True while the arrays may be shared with another layer, so must be
+	// copied before they are changed
+	private boolean shared = false;
+
+	/**
+	 * Creates an empty layer
+	 */
+	public ItemLayer() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Creates a layer sharing the arrays of another
+	 */
+	private ItemLayer(ItemLayer original) {
+		this.cells = original.cells;
+		this.items = original.items;
+		this.size = original.size;
+		this.counts = original.counts.clone();
+		this.shared = true;
+	}
+
+	/**
+	 * Copies the layer. The copy shares this layer's arrays until either of
+	 * them is changed.
+	 *
+	 * @return a layer holding the same items
+	 */
+	public ItemLayer copy() {
+		this.shared = true;
+		return new ItemLayer(this);
+	}
+
+	/**
+	 * @return the number of items on the map
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Finds the item on a cell
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 * @return the character of the item, or 0 if the cell is empty
+	 */
+	public char get(int cell) {
+		final int slot = find(cell);
+		if (this.cells[slot] == EMPTY) {
+			return 0;
+		}
+		return this.items[slot];
+	}
+
+	/**
+	 * Places an item on a cell, replacing anything already there
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 * @param item
+	 *            the character of the item
+	 */
+	public void put(int cell, char item) {
+		if (cell < 0) {
+			throw new IllegalArgumentException("invalid cell " + cell);
+		}
+		if (item >= CHARACTERS) {
+			throw new IllegalArgumentException("invalid item " + item);
+		}
+
+		unshare();
+		int slot = find(cell);
+		if (this.cells[slot] == EMPTY) {
+			if ((this.size + 1) * 2 > this.cells.length) {
+				grow();
+				slot = find(cell);
+			}
+			this.cells[slot] = cell;
+			this.size++;
+		} else {
+			this.counts[this.items[slot]]--;
+		}
+		this.items[slot] = item;
+		this.counts[item]++;
+	}
+
+	/**
+	 * Takes the item off a cell
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 * @return the character of the item that was removed, or 0 if there was
+	 *         none
+	 */
+	public char remove(int cell) {
+		int slot = find(cell);
+		if (this.cells[slot] == EMPTY) {
+			return 0;
+		}
+		unshare();
+		final char item = this.items[slot];
+
+		// Shift back any later entries which would no longer be found once
+		// this slot is empty
+		final int mask = this.cells.length - 1;
+		int next = (slot + 1) & mask;
+		while (this.cells[next] != EMPTY) {
+			final int home = hash(this.cells[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				this.cells[slot] = this.cells[next];
+				this.items[slot] = this.items[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.cells[slot] = EMPTY;
+		this.size--;
+		this.counts[item]--;
+		return item;
+	}
+
+	/**
+	 * Counts the items of one kind
+	 *
+	 * @param item
+	 *            the character of the item to count
+	 * @return the number of cells holding that item
+	 */
+	public int count(char item) {
+		if (item >= CHARACTERS) {
+			return 0;
+		}
+		return this.counts[item];
+	}
+
+	/**
+	 * @return the slot holding the cell, or the empty slot where it would go
+	 */
+	private int find(int cell) {
+		final int mask = this.cells.length - 1;
+		int slot = hash(cell) & mask;
+		while ((this.cells[slot] != EMPTY) && (this.cells[slot] != cell)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Spreads neighbouring cell indices across the table
+	 */
+	private static int hash(int cell) {
+		final int hash = cell * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Doubles the size of the table, putting every item back in
+	 */
+	private void grow() {
+		final int[] oldCells = this.cells;
+		final char[] oldItems = this.items;
+
+		allocate(oldCells.length * 2);
+		for (int slot = 0; slot < oldCells.length; slot++) {
+			if (oldCells[slot] != EMPTY) {
+				final int newSlot = find(oldCells[slot]);
+				this.cells[newSlot] = oldCells[slot];
+				this.items[newSlot] = oldItems[slot];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this.cells = new int[capacity];
+		this.items = new char[capacity];
+		this.shared = false;
+		Arrays.fill(this.cells, EMPTY);
+	}
+
+	/**
+	 * Takes a private copy of the arrays if they may be shared, before they
+	 * are changed
+	 */
+	private void unshare() {
+		if (this.shared) {
+			this.cells = this.cells.clone();
+			this.items = this.items.clone();
+			this.shared = false;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Measures how long very large text maps take to load and how much heap is
+ * needed while they do. Maps of 100MB and more are generated and written out
+ * as text, then loaded once by Map, which memory-maps the file, and once the
+ * way the server used to read them, with a Scanner reading every line into a
+ * List of Strings and a Tile made for every character. That code is copied
+ * here, as Map no longer reads maps like that; if the heap isn't big enough
+ * for it, that is reported instead.
+ *
+ * The peak heap is the most that each of the heap's memory pools held during
+ * the load, added together, less what was in use beforehand. The pools may
+ * not have been at their fullest all at once, so this may be a little more
+ * than the heap ever held.
+ *
+ * The map files are written to the temporary directory and deleted
+ * afterwards.
+ */
+public class LargeMapLoadBenchmark {
+
+	// The sides of the generated maps, of 100MB and 196MB as text
+	private static final int SIDES[] = { 10240, 14336 };
+
+	/**
+	 * A way of loading a map file
+	 */
+	private interface Loader {
+		Object load(String filename) throws Exception;
+	}
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.out.println(String.format("Maximum heap %dMB",
+				Runtime.getRuntime().maxMemory() / 1048576));
+		System.out.println("Map            File size   Loader    Load time   Peak heap");
+		for (final int side : SIDES) {
+			final Path mapFile = Files.createTempFile("large", ".txt");
+			mapFile.toFile().deleteOnExit();
+			new MapGenerator(1).generate(side, side).writeText(mapFile.toString());
+			final String label = String.format("%-11s %8dMB", side + "x" + side,
+					Files.size(mapFile) / 1048576);
+
+			measure(label, "Map", Map::new, mapFile.toString());
+			measure(label, "Scanner", LargeMapLoadBenchmark::scannerLoad, mapFile.toString());
+			Files.delete(mapFile);
+		}
+	}
+
+	/**
+	 * Loads a map file once, and prints how long it took and the most heap
+	 * used meanwhile
+	 */
+	private static void measure(String label, String loaderName, Loader loader, String filename)
+			throws Exception {
+		final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pools.add(pool);
+			}
+		}
+
+		System.gc();
+		long before = 0;
+		for (final MemoryPoolMXBean pool : pools) {
+			pool.resetPeakUsage();
+			before += pool.getUsage().getUsed();
+		}
+
+		final long start = System.nanoTime();
+		Object map;
+		try {
+			map = loader.load(filename);
+		} catch (final OutOfMemoryError e) {
+			map = null;
+		}
+		final long time = System.nanoTime() - start;
+
+		long peak = 0;
+		for (final MemoryPoolMXBean pool : pools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		System.out.println(String.format("%s   %-7s %9.1fs %9dMB%s", label, loaderName,
+				time / 1e9, (peak - before) / 1048576, (map == null) ? "  out of memory" : ""));
+	}
+
+	/**
+	 * Reads a text map the way Map used to, checking each row's length and
+	 * making a Tile for every cell, though not reading the name and goal
+	 *
+	 * @return the tiles of the map
+	 */
+	private static Tile[][] scannerLoad(String filename) throws Exception {
+		final List<String> lines = new ArrayList<String>();
+		try (Scanner scanner = new Scanner(new FileReader(filename))) {
+			while (scanner.hasNextLine()) {
+				lines.add(scanner.nextLine());
+			}
+		}
+
+		final int mapWidth = lines.get(2).length();
+		final int mapHeight = lines.size() - 2;
+		final Tile map[][] = new Tile[mapHeight][mapWidth];
+		for (int row = 0; row < mapHeight; row++) {
+			final String line = lines.get(row + 2);
+			if (line.length() != mapWidth) {
+				throw new ParseException("all lines must be the same length", row + 2);
+			}
+			for (int col = 0; col < line.length(); col++) {
+				map[row][col] = Tile.fromChar(line.charAt(col));
+			}
+		}
+		return map;
+	}
+}
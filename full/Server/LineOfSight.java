@@ -0,0 +1,236 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Works out which cells can be seen from a cell without looking through
+ * walls, using recursive shadowcasting: each of the eight octants around the
+ * viewer is scanned row by row moving outwards, and every wall found narrows
+ * the range of slopes which the rows behind it can still be seen through.
+ *
+ * What can be seen from a cell only depends on the terrain, which never
+ * changes, so each result is kept and shared by every game on the same map.
+ * Players mostly LOOK from the cell they were last on, so most LOOKs are
+ * answered from here. Only a limited number of results are kept: when there
+ * are too many, a quarter of them are dropped, whichever the map gives up
+ * first, rather than keeping track of which were used least recently. That
+ * way looking up a view never takes a lock, so any number of LOOKs can run at
+ * once.
+ */
+public class LineOfSight {
+
+	/**
+	 * The cells which can be seen from one cell, out to some distance
+	 */
+	public static final class View {
+		private final int col;
+		private final int row;
+		private final int radius;
+		private final int size;
+
+		// One bit for each cell of the square around the viewer, row by row
+		private final long[] visible;
+
+		private View(int col, int row, int radius) {
+			this.col = col;
+			this.row = row;
+			this.radius = radius;
+			this.size = 2 * radius + 1;
+			this.visible = new long[(this.size * this.size + 63) >> 6];
+		}
+
+		private void setVisible(int rowOffset, int colOffset) {
+			final int bit = (rowOffset + this.radius) * this.size + colOffset + this.radius;
+			this.visible[bit >> 6] |= 1L << bit;
+		}
+
+		/**
+		 * Checks whether a cell can be seen
+		 *
+		 * @return true if the cell with the given offset from the viewer is in
+		 *         sight
+		 */
+		public boolean canSee(int rowOffset, int colOffset) {
+			if ((Math.abs(rowOffset) > this.radius) || (Math.abs(colOffset) > this.radius)) {
+				return false;
+			}
+			final int bit = (rowOffset + this.radius) * this.size + colOffset + this.radius;
+			return (this.visible[bit >> 6] & (1L << bit)) != 0;
+		}
+
+		/**
+		 * @return true if this is the view from the given cell, out to the
+		 *         given distance
+		 */
+		private boolean isFrom(int col, int row, int radius) {
+			return (this.col == col) && (this.row == row) && (this.radius == radius);
+		}
+	}
+
+	// Turn the first octant's rows and columns into each of the others'
+	private static final int[][] OCTANTS = { { 1, 0, 0, 1 }, { 0, 1, 1, 0 },
+			{ 0, -1, 1, 0 }, { -1, 0, 0, 1 }, { -1, 0, 0, -1 },
+			{ 0, -1, -1, 0 }, { 0, 1, -1, 0 }, { 1, 0, 0, -1 } };
+
+	// The views worked out so far, by the cell they are from and their radius
+	private final ConcurrentHashMap<Long, View> views = new ConcurrentHashMap<Long, View>();
+	private final int maxViews;
+
+	// Whether a thread is already dropping views, so that others don't join in
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+	// How often a view was already known, had to be worked out, or was dropped,
+	// for the server log
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates an empty cache of views
+	 *
+	 * @param maxViews
+	 *            the most views to keep at once
+	 */
+	public LineOfSight(final int maxViews) {
+		this.maxViews = maxViews;
+	}
+
+	/**
+	 * Finds the cells which can be seen from a cell, working them out if they
+	 * aren't already known. This may be called by several games at once. Two
+	 * of them may work out the same view at the same time, in which case both
+	 * get the same answer and only one is kept.
+	 *
+	 * @param map
+	 *            the map, or any copy of it, since only the terrain is used
+	 * @param col
+	 *            the column of the cell to look from
+	 * @param row
+	 *            the row of the cell to look from
+	 * @param radius
+	 *            how far to look in each direction
+	 * @param last
+	 *            the view the caller last had from this map, or null. If it
+	 *            is from the same cell, it is given back without looking it
+	 *            up, which saves boxing the key.
+	 * @return the cells in sight
+	 */
+	public View view(Map map, int col, int row, int radius, View last) {
+		if ((last != null) && last.isFrom(col, row, radius)) {
+			this.hits.increment();
+			return last;
+		}
+		final Long key = ((long) row * map.getMapWidth() + col) << 16 | radius;
+		final View known = this.views.get(key);
+		if (known != null) {
+			this.hits.increment();
+			return known;
+		}
+		this.misses.increment();
+		final View view = castView(map, col, row, radius);
+		final View raced = this.views.putIfAbsent(key, view);
+		if ((raced == null) && (this.views.size() > this.maxViews)) {
+			evict();
+		}
+		return (raced == null) ? view : raced;
+	}
+
+	/**
+	 * Drops a quarter of the views kept. Only one thread does this at a time;
+	 * any others carry on, since the limit only needs to be roughly kept to.
+	 */
+	private void evict() {
+		if (!this.evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int toDrop = this.views.size() - (this.maxViews - this.maxViews / 4);
+			final Iterator<Long> keys = this.views.keySet().iterator();
+			while ((toDrop > 0) && keys.hasNext()) {
+				keys.next();
+				keys.remove();
+				toDrop--;
+				this.evictions.increment();
+			}
+		} finally {
+			this.evicting.set(false);
+		}
+	}
+
+	/**
+	 * @return a summary of the cache metrics, for the server log
+	 */
+	@Override
+	public String toString() {
+		final long hitCount = this.hits.sum();
+		final long missCount = this.misses.sum();
+		final long lookups = hitCount + missCount;
+		final double hitRate = (lookups == 0) ? 0 : (100.0 * hitCount) / lookups;
+		return String.format("%d views kept, %d hits, %d misses (%.1f%% hit rate), %d evicted",
+				this.views.size(), hitCount, missCount, hitRate, this.evictions.sum());
+	}
+
+	/**
+	 * Works out the cells in sight from a cell. A wall can be seen, but
+	 * nothing behind it, and anything outside the map counts as a wall.
+	 */
+	private static View castView(Map map, int col, int row, int radius) {
+		final View view = new View(col, row, radius);
+		view.setVisible(0, 0);
+		for (final int[] octant : OCTANTS) {
+			castOctant(map, view, col, row, 1, 1.0, 0.0, octant);
+		}
+		return view;
+	}
+
+	/**
+	 * Scans one octant outwards from the given distance, seeing between the
+	 * start and end slopes. Every row of cells is scanned from the start
+	 * slope towards the end slope. Where a run of walls ends, the part of the
+	 * octant before it is scanned separately, and where one begins the start
+	 * slope moves past it.
+	 */
+	private static void castOctant(Map map, View view, int col, int row, int distance,
+			double startSlope, double endSlope, int[] octant) {
+		if (startSlope < endSlope) {
+			return;
+		}
+		double nextStartSlope = startSlope;
+		for (int depth = distance; depth <= view.radius; depth++) {
+			boolean blocked = false;
+			for (int across = -depth; across <= 0; across++) {
+				// The slopes of the cell's edges nearest the start and end
+				final double leftSlope = (across - 0.5) / (-depth + 0.5);
+				final double rightSlope = (across + 0.5) / (-depth - 0.5);
+				if (startSlope < rightSlope) {
+					continue;
+				} else if (endSlope > leftSlope) {
+					break;
+				}
+
+				final int colOffset = across * octant[0] - depth * octant[1];
+				final int rowOffset = across * octant[2] - depth * octant[3];
+				view.setVisible(rowOffset, colOffset);
+
+				final boolean wall = !map.insideMap(col + colOffset, row + rowOffset)
+						|| !map.isWalkable(col + colOffset, row + rowOffset);
+				if (blocked) {
+					if (wall) {
+						nextStartSlope = rightSlope;
+					} else {
+						blocked = false;
+						startSlope = nextStartSlope;
+					}
+				} else if (wall && (depth < view.radius)) {
+					blocked = true;
+					castOctant(map, view, col, row, depth + 1, startSlope, leftSlope, octant);
+					nextStartSlope = rightSlope;
+				}
+			}
+			if (blocked) {
+				break;
+			}
+		}
+	}
+}
@@ -102,4 +102,9 @@ public class Location {
 
 		return true;
 	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.row + this.col;
+	}
 }
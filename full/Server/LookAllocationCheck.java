@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Checks that answering a LOOK creates no garbage once the server has warmed
+ * up. The bytes allocated by a thread are counted by the JVM, so each stage of
+ * a LOOK is run many times and the bytes it allocated are divided between
+ * them. It prints the bytes per LOOK for each stage, then PASS or FAIL, and
+ * exits with 1 if any stage that must allocate nothing did.
+ *
+ * The stages are building LOOKREPLY and RENDERHINT in a ReplyBuffer, with and
+ * without line of sight, and then sending them: by ClientChannel, which
+ * encodes them into its output buffer, and by ClientThread with a GameLoop,
+ * which copies them into a spare buffer for its writer thread. Each message
+ * is also printed to the server's log with printf, which makes garbage of its
+ * own, so the clients here don't print anything. Each LOOK's replies are read
+ * back before the next is sent, as a client would. The writer thread is shown
+ * but not checked, as waiting for a message takes a little memory each time.
+ */
+public class LookAllocationCheck {
+
+	// The number of LOOKs to warm up with, and then to count
+	private static final int WARM_UP = 200000;
+	private static final int LOOKS = 200000;
+
+	// The number of players on the map, who take turns to LOOK
+	private static final int PLAYERS = 64;
+
+	/**
+	 * A stage of a LOOK, run once for each LOOK
+	 */
+	private interface Stage {
+		void run(int look) throws IOException;
+	}
+
+	/**
+	 * A player which ignores everything it is told
+	 */
+	private static final class Listener implements PlayerListener {
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void startTurn() {}
+
+		@Override
+		public void endTurn() {}
+
+		@Override
+		public void win() {}
+
+		@Override
+		public void lose() {}
+
+		@Override
+		public void hpChange(int value) {}
+
+		@Override
+		public void treasureChange(int value) {}
+
+		@Override
+		public void sendChange() {}
+
+		@Override
+		public void sendDelta(String delta) {}
+	}
+
+	/**
+	 * Main method, used to run the check.
+	 */
+	public static void main(String[] args) throws Exception {
+		final Path mapFile = Files.createTempFile("look", ".dmap");
+		mapFile.toFile().deleteOnExit();
+		new MapGenerator(1).generate(1024, 1024).writeBinary(mapFile.toString());
+		final GameLogic game = new GameLogic(mapFile.toString());
+		game.setExitWhenEmpty(false);
+		final int[] players = new int[PLAYERS];
+		for (int i = 0; i < PLAYERS; i++) {
+			players[i] = game.addPlayer(new Listener());
+		}
+
+		final ReplyBuffer lookReply = new ReplyBuffer(256);
+		final ReplyBuffer hintReply = new ReplyBuffer(256);
+		final Stage render = look -> {
+			final int playerID = players[look % PLAYERS];
+			lookReply.clear();
+			lookReply.append("LOOKREPLY").append('\n');
+			game.clientLook(playerID, lookReply);
+			hintReply.clear();
+			hintReply.append("RENDERHINT");
+			game.clientRenderHint(playerID, hintReply);
+		};
+
+		boolean passed = true;
+		passed &= report("Building replies", count(render), true);
+		game.setLineOfSight(true);
+		passed &= report("Building replies with line of sight", count(render), true);
+
+		// Send the replies of every player's LOOK, one after another. The
+		// replies are all ASCII, so each takes a byte for each character and
+		// the newline.
+		final ReplyBuffer[] lookReplies = new ReplyBuffer[PLAYERS];
+		final ReplyBuffer[] hintReplies = new ReplyBuffer[PLAYERS];
+		final int[] replyBytes = new int[PLAYERS];
+		for (int i = 0; i < PLAYERS; i++) {
+			render.run(i);
+			lookReplies[i] = new ReplyBuffer(lookReply.length());
+			lookReplies[i].append(lookReply.getChars(), 0, lookReply.length());
+			hintReplies[i] = new ReplyBuffer(hintReply.length());
+			hintReplies[i].append(hintReply.getChars(), 0, hintReply.length());
+			replyBytes[i] = lookReply.length() + hintReply.length() + 2;
+		}
+
+		passed &= report("Sending by ClientChannel", count(channelSender(game, lookReplies,
+				hintReplies, replyBytes)), true);
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		final Stage threadSender = threadSender(game, lookReplies, hintReplies, replyBytes, threads);
+		final Thread writer = threads.get(0);
+		final long writerBefore = allocatedBytes(writer);
+		passed &= report("Queueing for ClientThread's writer", count(threadSender), true);
+		report("ClientThread's writer thread", (double) (allocatedBytes(writer) - writerBefore)
+				/ (WARM_UP + LOOKS), false);
+
+		System.out.println(passed ? "PASS" : "FAIL");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Sends replies through a ClientChannel connected to a socket in this
+	 * process, writing them out and reading them back for every LOOK. The
+	 * selector is run each time too, as the NioServer would, so that it takes
+	 * in the changes to the key.
+	 */
+	private static Stage channelSender(GameLogic game, ReplyBuffer[] lookReplies,
+			ReplyBuffer[] hintReplies, int[] replyBytes) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		final SocketChannel accepted = server.accept();
+		accepted.configureBlocking(false);
+		final Selector selector = Selector.open();
+		final SelectionKey key = accepted.register(selector, SelectionKey.OP_READ);
+		final ClientChannel channel = new ClientChannel(accepted, key, game, null) {
+			@Override
+			protected void serverOutput(String direction, CharSequence command) {}
+		};
+
+		final ByteBuffer received = ByteBuffer.allocateDirect(64 * 1024);
+		final Consumer<SelectionKey> ignore = selected -> {};
+		final ReplyBuffer reply = new ReplyBuffer(256);
+		return look -> {
+			send(channel, reply, lookReplies[look % lookReplies.length]);
+			send(channel, reply, hintReplies[look % hintReplies.length]);
+			selector.selectNow(ignore);
+			channel.write();
+			received.clear();
+			while (received.position() < replyBytes[look % replyBytes.length]) {
+				client.read(received);
+			}
+		};
+	}
+
+	/**
+	 * Queues replies for a ClientThread's writer thread, which sends them to a
+	 * socket in this process, and reads them back for every LOOK as a client
+	 * would before its next LOOK. The threads the ClientThread starts are
+	 * added to the list, the writer first.
+	 */
+	private static Stage threadSender(GameLogic game, ReplyBuffer[] lookReplies,
+			ReplyBuffer[] hintReplies, int[] replyBytes, List<Thread> threads) throws IOException {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		final Socket accepted = server.accept();
+		final InputStream in = client.getInputStream();
+
+		// The loop is never run, so the player the ClientThread adds to the
+		// game is never added, and it only sends what it is given here
+		final ClientThread sender = new ClientThread(accepted, game, runnable -> {
+			final Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			threads.add(thread);
+			return thread;
+		}, new GameLoop()) {
+			@Override
+			protected void serverOutput(String direction, CharSequence command) {}
+		};
+
+		final byte[] received = new byte[64 * 1024];
+		final ReplyBuffer reply = new ReplyBuffer(256);
+		return look -> {
+			send(sender, reply, lookReplies[look % lookReplies.length]);
+			send(sender, reply, hintReplies[look % hintReplies.length]);
+			for (int bytes = 0; bytes < replyBytes[look % replyBytes.length];) {
+				bytes += in.read(received, bytes, received.length - bytes);
+			}
+		};
+	}
+
+	/**
+	 * Sends a reply from the user's one reply buffer, as CommandLineUser does
+	 */
+	private static void send(CommandLineUser user, ReplyBuffer reply, ReplyBuffer message) {
+		reply.clear();
+		reply.append(message.getChars(), 0, message.length());
+		user.doOutputMessage(reply);
+	}
+
+	/**
+	 * Runs a stage enough times to warm up, then counts the bytes it
+	 * allocates on this thread
+	 *
+	 * @return the bytes allocated for each LOOK
+	 */
+	private static double count(Stage stage) throws IOException {
+		for (int look = 0; look < WARM_UP; look++) {
+			stage.run(look);
+		}
+		final long before = allocatedBytes(Thread.currentThread());
+		for (int look = 0; look < LOOKS; look++) {
+			stage.run(look);
+		}
+		return (double) (allocatedBytes(Thread.currentThread()) - before) / LOOKS;
+	}
+
+	/**
+	 * @return the bytes a thread has allocated since it started
+	 */
+	private static long allocatedBytes(Thread thread) {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(thread.getId());
+	}
+
+	/**
+	 * Prints the bytes allocated for each LOOK by a stage
+	 *
+	 * @return true if the stage need not allocate nothing, or didn't
+	 */
+	private static boolean report(String stage, double bytes, boolean mustBeZero) {
+		// A few bytes overall may come from the JVM itself, e.g. recompiling
+		final boolean passed = !mustBeZero || (bytes < 1);
+		System.out.println(String.format("%-40s %8.2f bytes per LOOK%s", stage, bytes,
+				passed ? "" : "  FAIL"));
+		return passed;
+	}
+}
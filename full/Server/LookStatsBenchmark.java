@@ -0,0 +1,173 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures what a player's look distance costs a LOOK. Player works out its
+ * stats when its items change, so a LOOK reads the look distance once from a
+ * field. Player used to go through its items every time it was asked, and a
+ * LOOK asked once for every cell it covered; that is timed too, for a player
+ * holding a lantern, a sword and armour, with the code copied here as Player
+ * no longer works like that.
+ *
+ * Then a player picks up the same items on a small map and LOOKs over and
+ * over, and the median and 99th percentile of the time each LOOK takes are
+ * printed.
+ *
+ * The map file is written to the temporary directory and deleted afterwards.
+ */
+public class LookStatsBenchmark {
+
+	// The number of LOOKs to warm up with, and then to time
+	private static final int WARM_UP = 200000;
+	private static final int LOOKS = 200000;
+
+	// How far a player can see without a lantern, as in Player
+	private static final int DEFAULT_LOOK_DISTANCE = 2;
+
+	/**
+	 * A player which ignores everything it is told
+	 */
+	private static final class Listener implements PlayerListener {
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void startTurn() {}
+
+		@Override
+		public void endTurn() {}
+
+		@Override
+		public void win() {}
+
+		@Override
+		public void lose() {}
+
+		@Override
+		public void hpChange(int value) {}
+
+		@Override
+		public void treasureChange(int value) {}
+
+		@Override
+		public void sendChange() {}
+
+		@Override
+		public void sendDelta(String delta) {}
+	}
+
+	/**
+	 * A LOOK, or the part of one being timed
+	 */
+	private interface Look {
+		/**
+		 * @return something worked out from what was seen, so that the work
+		 *         can't be skipped
+		 */
+		int run(int look);
+	}
+
+	// Where the results of the LOOKs are added up
+	private static volatile int seen;
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		final Player player = new Player("looker", new Location(0, 0), new Listener());
+		final List<GameItem> items = new ArrayList<GameItem>();
+		for (final GameItem item : new GameItem[] { new Lantern(), new Sword(), new Armour() }) {
+			player.giveItem(item);
+			items.add(item);
+		}
+
+		// A LOOK used to ask for every cell in the square it covers, which is
+		// a cell wider on each side than the look distance
+		final int side = 2 * (player.lookDistance() + 1) + 1;
+		final int cells = side * side;
+		System.out.println(String.format("Look distance %d with a lantern, %d cells asked about",
+				player.lookDistance(), cells));
+
+		report("Look distance read once", time(look -> player.lookDistance()));
+		report("Items walked for each cell", time(look -> {
+			int sum = 0;
+			for (int cell = 0; cell < cells; cell++) {
+				sum += walkedLookDistance(items);
+			}
+			return sum;
+		}));
+
+		// A game with a single player, who picks up the same items
+		final Path mapFile = Files.createTempFile("stats", ".txt");
+		mapFile.toFile().deleteOnExit();
+		final List<String> lines = new ArrayList<String>();
+		lines.add("name stats");
+		lines.add("win 1");
+		lines.add("#########");
+		lines.add("#.LSA.GE#");
+		for (int row = 0; row < 5; row++) {
+			lines.add("#.......#");
+		}
+		lines.add("#########");
+		Files.write(mapFile, lines);
+		final GameLogic game = new GameLogic(mapFile.toString());
+		game.setExitWhenEmpty(false);
+		final int playerID = game.addPlayer(new Listener());
+		for (int col = 2; col <= 4; col++) {
+			game.setPlayerPosition(col, 1, playerID);
+			game.clientPickup(playerID);
+		}
+		game.setPlayerPosition(4, 4, playerID);
+
+		final ReplyBuffer reply = new ReplyBuffer(256);
+		report("LOOK", time(look -> {
+			reply.clear();
+			game.clientLook(playerID, reply);
+			return reply.length();
+		}));
+	}
+
+	/**
+	 * Works out a look distance the way Player used to, by going through the
+	 * player's items
+	 */
+	private static int walkedLookDistance(List<GameItem> items) {
+		int lookDistance = DEFAULT_LOOK_DISTANCE;
+		for (final GameItem item : items) {
+			lookDistance += item.lookDistanceIncrease();
+		}
+		return lookDistance;
+	}
+
+	/**
+	 * Times LOOKs one at a time after warming up
+	 *
+	 * @return the time each LOOK took, in nanoseconds, from fastest to slowest
+	 */
+	private static long[] time(Look look) {
+		int sum = 0;
+		for (int i = 0; i < WARM_UP; i++) {
+			sum += look.run(i);
+		}
+		final long times[] = new long[LOOKS];
+		for (int i = 0; i < LOOKS; i++) {
+			final long start = System.nanoTime();
+			sum += look.run(i);
+			times[i] = System.nanoTime() - start;
+		}
+		seen = sum;
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * Prints the median and 99th percentile of the times taken
+	 */
+	private static void report(String what, long times[]) {
+		System.out.println(String.format("%-28s median %8.3fus   99th %8.3fus", what,
+				times[times.length / 2] / 1000.0, times[times.length * 99 / 100] / 1000.0));
+	}
+}
@@ -0,0 +1,134 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Measures how many LOOKs a game can answer each second as more threads send
+ * them at once. Each thread plays a player of its own and LOOKs over and over
+ * for a few seconds, taking the game's lock around each LOOK as ClientThread
+ * does. The LOOKs are run first holding the read lock, as ClientThread takes
+ * it for LOOK, so that they can all run at once, and then holding the write
+ * lock, so that only one can run at a time, as when every command took the
+ * game's monitor. The LOOKs per second for 1, 2, 4 and 8 threads are printed
+ * for each.
+ *
+ * LOOKs can only run at once on as many processors as the machine has, so
+ * that is printed too.
+ *
+ * The map file is written to the temporary directory and deleted afterwards.
+ */
+public class LookThroughputBenchmark {
+
+	// The numbers of threads sending LOOKs
+	private static final int THREADS[] = { 1, 2, 4, 8 };
+
+	// How long to LOOK for with each number of threads, after warming up
+	private static final long WARM_UP_MS = 1000;
+	private static final long RUN_MS = 3000;
+
+	/**
+	 * A player which ignores everything it is told
+	 */
+	private static final class Listener implements PlayerListener {
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void startTurn() {}
+
+		@Override
+		public void endTurn() {}
+
+		@Override
+		public void win() {}
+
+		@Override
+		public void lose() {}
+
+		@Override
+		public void hpChange(int value) {}
+
+		@Override
+		public void treasureChange(int value) {}
+
+		@Override
+		public void sendChange() {}
+
+		@Override
+		public void sendDelta(String delta) {}
+	}
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		final Path mapFile = Files.createTempFile("throughput", ".dmap");
+		mapFile.toFile().deleteOnExit();
+		new MapGenerator(1).generate(1024, 1024).writeBinary(mapFile.toString());
+		final GameLogic game = new GameLogic(mapFile.toString());
+		game.setExitWhenEmpty(false);
+		final int players[] = new int[THREADS[THREADS.length - 1]];
+		for (int i = 0; i < players.length; i++) {
+			players[i] = game.addPlayer(new Listener());
+		}
+
+		System.out.println(String.format("%d processors", Runtime.getRuntime()
+				.availableProcessors()));
+		System.out.println("Threads   Read lock LOOKs/s   Write lock LOOKs/s");
+		for (final int threads : THREADS) {
+			System.out.println(String.format("%7d %19.0f %20.0f", threads, run(game, players,
+					threads, true), run(game, players, threads, false)));
+		}
+	}
+
+	/**
+	 * LOOKs from several threads at once, each as a different player
+	 *
+	 * @param readLock
+	 *            true to hold the read lock around each LOOK, or false to hold
+	 *            the write lock
+	 * @return the LOOKs answered each second
+	 */
+	private static double run(GameLogic game, int players[], int threads, boolean readLock)
+			throws InterruptedException {
+		final StampedLock lock = game.getLock();
+		final AtomicLong looks = new AtomicLong();
+		final long start = System.nanoTime();
+		final long countFrom = start + WARM_UP_MS * 1000000;
+		final long end = countFrom + RUN_MS * 1000000;
+
+		final Thread workers[] = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int playerID = players[i];
+			workers[i] = new Thread(() -> {
+				final ReplyBuffer reply = new ReplyBuffer(256);
+				long counted = 0;
+				while (true) {
+					final long now = System.nanoTime();
+					if (now >= end) {
+						break;
+					}
+					final long stamp = readLock ? lock.readLock() : lock.writeLock();
+					try {
+						reply.clear();
+						game.clientLook(playerID, reply);
+						reply.clear();
+						game.clientRenderHint(playerID, reply);
+					} finally {
+						lock.unlock(stamp);
+					}
+					if (now >= countFrom) {
+						counted++;
+					}
+				}
+				looks.addAndGet(counted);
+			});
+			workers[i].start();
+		}
+		for (final Thread worker : workers) {
+			worker.join();
+		}
+		return looks.get() * 1000.0 / RUN_MS;
+	}
+}
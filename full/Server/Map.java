@@ -1,9 +1,24 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class containing the map used by the game engine. Allows for reading in ASCII
@@ -17,8 +32,41 @@ public class Map {
 	// The name of the map
 	private String name;
 
-	// The tiles of the map, stored in row-major order, i.e. [row][col]
-	private Tile map[][];
+	// The type of each tile of the map, as the ordinal of its Tile.TileType,
+	// stored in row-major order, i.e. [row * width + col]. The terrain never
+	// changes once it has been loaded, so it is shared by every copy of the map
+	private byte tiles[];
+
+	// The tile types of a map too large to hold in tiles, which are read from
+	// the file as they are needed, or null if the map is held in tiles
+	private ChunkedTerrain chunks = null;
+
+	// Binary maps with more cells than this are read in chunks, keeping at
+	// most MAX_CHUNKS of them in memory
+	private static final long CHUNKED_CELLS = 1L << 24;
+	private static final int MAX_CHUNKS = 1024;
+
+	// What can be seen from each cell, which like the terrain is shared by
+	// every copy of the map, keeping at most MAX_VIEWS of them
+	private LineOfSight lineOfSight = new LineOfSight(MAX_VIEWS);
+	private static final int MAX_VIEWS = 1 << 16;
+
+	// Where on the map players can start, which is also shared by every copy
+	private SpawnIndex spawnIndex = new SpawnIndex();
+
+	// The items lying on the map, by the same index as tiles. These are the
+	// only part of a map that a game changes, so each copy has its own
+	private final ItemLayer items;
+
+	// The size of the map
+	private int width;
+	private int height;
+
+	// Saves TileType.values() copying its array for every cell
+	private static final Tile.TileType TILE_TYPES[] = Tile.TileType.values();
+
+	// The character for gold, so that no Gold is made to count it
+	private static final char GOLD = new Gold().toChar();
 
 	// The number of gold required to win
 	private int goal;
@@ -31,46 +79,160 @@ public class Map {
 	// Minimum number of lines
 	private static final int MINLINES = 3;
 
+	// What each byte of a map file stands for: the ordinal of a tile type,
+	// ITEM for an item lying on the floor, or INVALID
+	private static final byte ITEM = -1;
+	private static final byte INVALID = -2;
+	private static final byte BYTE_MEANINGS[] = new byte[256];
+
+	// Binary map files begin with these bytes, which can't begin a text map
+	private static final byte BINARY_MAGIC[] = { 'D', 'O', 'D', 'M' };
+	private static final int BINARY_VERSION = 1;
+
+	// Each tile of a binary map is packed into two bits of the body
+	private static final int TILE_BITS = 2;
+	private static final int TILES_PER_BYTE = 8 / TILE_BITS;
+	private static final int TILE_MASK = (1 << TILE_BITS) - 1;
+
+	static {
+		if (TILE_TYPES.length > TILE_MASK + 1) {
+			throw new IllegalStateException(
+					"binary maps can't hold this many tile types");
+		}
+		for (int b = 0; b < BYTE_MEANINGS.length; b++) {
+			final Tile.TileType type = Tile.TileType.fromChar((char) b);
+			if (type != null) {
+				BYTE_MEANINGS[b] = (byte) type.ordinal();
+				continue;
+			}
+			try {
+				GameItem.fromChar((char) b);
+				BYTE_MEANINGS[b] = ITEM;
+			} catch (final IllegalArgumentException e) {
+				BYTE_MEANINGS[b] = INVALID;
+			}
+		}
+	}
+
 	/**
 	 * Creates a map from the file specified. Note that this is not robust...
 	 *
+	 * The file may be either a text map or a binary map written by
+	 * writeBinary. It is memory-mapped rather than read into Strings, so even
+	 * a very large map only takes up as much heap as its tiles and items. A
+	 * very large binary map is not even read in full; its tiles are read a
+	 * chunk at a time as the game needs them.
+	 *
 	 * @param filename
 	 *            The name of the file to load the map from
 	 * @throws ParseException
 	 * @throws FileNotFoundException
 	 */
 	public Map(String filename) throws ParseException, FileNotFoundException {
-		final List<String> lines = readFile(filename);
+		this(filename, ForkJoinPool.commonPool());
+	}
 
-		// Good programmers always check this...
-		if (lines.size() < MINLINES) {
-			throw new ParseException(
-					"a map file must contain at least three lines",
-					lines.size());
+	/**
+	 * Creates a map from the file specified, as above, decoding the rows of a
+	 * text map with the threads of the pool given, e.g. to measure how the
+	 * time taken depends on the number of threads.
+	 *
+	 * @param filename
+	 *            The name of the file to load the map from
+	 * @param pool
+	 *            The threads to decode the rows with
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	public Map(String filename, ForkJoinPool pool) throws ParseException,
+			FileNotFoundException {
+		this.items = new ItemLayer();
+
+		try {
+			final FileChannel channel = FileChannel.open(Paths.get(filename),
+					StandardOpenOption.READ);
+			try {
+				readMappedFile(new MappedFile(channel), pool);
+			} finally {
+				// A chunked map goes on reading its tiles from the file
+				if (this.chunks == null) {
+					channel.close();
+				}
+			}
+		} catch (final NoSuchFileException e) {
+			throw new FileNotFoundException(filename);
+		} catch (final IOException e) {
+			final FileNotFoundException unreadable = new FileNotFoundException(
+					filename + " could not be read");
+			unreadable.initCause(e);
+			throw unreadable;
 		}
+	}
 
-		// The first line should always be the name of the map.
-		parseMapName(lines.get(NAMELINE));
+	/**
+	 * Creates a copy of a map for another game to be played on. The terrain
+	 * is shared rather than copied, and the items are copied only when one of
+	 * the maps first changes them, so a copy costs little more than the items
+	 * on it.
+	 *
+	 * @param original
+	 *            The map to copy
+	 */
+	private Map(Map original) {
+		this.name = original.name;
+		this.goal = original.goal;
+		this.width = original.width;
+		this.height = original.height;
+		this.tiles = original.tiles;
+		this.chunks = original.chunks;
+		this.lineOfSight = original.lineOfSight;
+		this.spawnIndex = original.spawnIndex;
+		this.items = original.items.copy();
+	}
 
-		// The second line should be the goal.
-		parseMapGoal(lines.get(GOALLINE));
+	/**
+	 * @return a copy of this map, with the items as they are now, which can be
+	 *         changed without affecting this map
+	 */
+	public Map copy() {
+		return new Map(this);
+	}
 
-		// Read in the map data from the file
-		readMap(lines);
+	/**
+	 * Creates a map from tiles and items which have already been made, e.g.
+	 * by MapGenerator. The map takes ownership of both.
+	 *
+	 * @param tiles
+	 *            the ordinal of the Tile.TileType of each cell, in row-major
+	 *            order
+	 * @param items
+	 *            the items lying on the map, by the same index as tiles
+	 */
+	Map(String name, int goal, int width, int height, byte tiles[],
+			ItemLayer items) {
+		if (tiles.length != width * height) {
+			throw new IllegalArgumentException("there must be a tile for every cell");
+		}
+		this.name = name;
+		this.goal = goal;
+		this.width = width;
+		this.height = height;
+		this.tiles = tiles;
+		this.items = items;
 	}
 
 	/**
 	 * @return The width of the map
 	 */
 	public int getMapWidth() {
-		return this.map[0].length;
+		return this.width;
 	}
 
 	/**
 	 * @return The height of the map
 	 */
 	public int getMapHeight() {
-		return this.map.length;
+		return this.height;
 	}
 
 	/**
@@ -79,7 +241,98 @@ public class Map {
 	 * @return the contents of the cell
 	 */
 	public Tile getMapCell(Location location) {
-		return this.map[location.getRow()][location.getCol()];
+		return getMapCell(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Returns the contents of the cell of the map at the column and row given,
+	 * for callers which don't want to create a Location. The map doesn't hold
+	 * Tile objects, so a new one is made to view the cell; removing its item
+	 * removes it from the map.
+	 *
+	 * @return the contents of the cell
+	 */
+	public Tile getMapCell(int col, int row) {
+		final int cell = row * this.width + col;
+		final Tile.TileType type = TILE_TYPES[getTile(col, row)];
+		final char item = this.items.get(cell);
+
+		if (item == 0) {
+			return new Tile(type, null, this, cell);
+		}
+		return new Tile(type, GameItem.fromChar(item), this, cell);
+	}
+
+	/**
+	 * Returns the character for the cell at the column and row given, as
+	 * Tile.toChar() would, but without creating a Tile
+	 *
+	 * @return the character representing the cell
+	 */
+	public char getMapChar(int col, int row) {
+		final int cell = row * this.width + col;
+		final char item = this.items.get(cell);
+
+		if (item == 0) {
+			return TILE_TYPES[getTile(col, row)].toChar();
+		}
+		return item;
+	}
+
+	/**
+	 * Checks if the cell at the column and row given can be walked on, as
+	 * Tile.isWalkable() would, but without creating a Tile
+	 *
+	 * @return true if the cell can be walked on
+	 */
+	public boolean isWalkable(int col, int row) {
+		return TILE_TYPES[getTile(col, row)].walkable();
+	}
+
+	/**
+	 * @return the ordinal of the type of the tile at the column and row given
+	 */
+	private byte getTile(int col, int row) {
+		if (this.chunks != null) {
+			return this.chunks.getTile(col, row);
+		}
+		return this.tiles[row * this.width + col];
+	}
+
+	/**
+	 * @return the chunks a very large map is read in, for their metrics, or
+	 *         null if the whole map is in memory
+	 */
+	public ChunkedTerrain getChunks() {
+		return this.chunks;
+	}
+
+	/**
+	 * @return the cache of what can be seen from each cell, which is shared
+	 *         with every copy of the map
+	 */
+	public LineOfSight getLineOfSight() {
+		return this.lineOfSight;
+	}
+
+	/**
+	 * @return the walkable cells players can start on, which are shared with
+	 *         every copy of the map
+	 */
+	public SpawnIndex getSpawnIndex() {
+		return this.spawnIndex;
+	}
+
+	/**
+	 * Removes the item from a cell. This is called by the Tile viewing it.
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 */
+	void removeItem(int cell) {
+		if (this.items.remove(cell) == 0) {
+			throw new IllegalStateException("there is no item to pick up");
+		}
 	}
 
 	/**
@@ -96,9 +349,17 @@ public class Map {
 	 * @return true if the location is valid, false otherwise
 	 */
 	public boolean insideMap(Location location) {
-		if ((location.getCol() < 0) || (location.getCol() >= getMapWidth())
-				|| (location.getRow() < 0)
-				|| (location.getRow() >= getMapHeight())) {
+		return insideMap(location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Used to check if a column and row are a valid location in the map
+	 *
+	 * @return true if the location is valid, false otherwise
+	 */
+	public boolean insideMap(int col, int row) {
+		if ((col < 0) || (col >= getMapWidth()) || (row < 0)
+				|| (row >= getMapHeight())) {
 			return false;
 		}
 		return true;
@@ -115,87 +376,694 @@ public class Map {
 	 * @return the amount of gold that has not been picked up on the map
 	 */
 	public int remainingGold() {
-		int goldCount = 0;
-
-		for (final Tile[] tileRow : this.map) {
-			for (final Tile tile : tileRow) {
-				if (tile.hasItem()) {
-					if (tile.getItem().getClass() == Gold.class) {
-						goldCount++;
-					}
+		return remainingItems(GOLD);
+	}
+
+	/**
+	 * Counts the items of one kind that have not been picked up. The count is
+	 * kept up to date as items are picked up, so no cells are looked at.
+	 *
+	 * @param item
+	 *            the character representing the kind of item, as returned by
+	 *            GameItem.toChar()
+	 * @return the number of items of that kind on the map
+	 */
+	public int remainingItems(char item) {
+		return this.items.count(item);
+	}
+
+	/**
+	 * Reads the map from the mapped file. The name and goal lines are decoded
+	 * into Strings, but the rows of the map are decoded byte by byte straight
+	 * into this.tiles and this.items, so no line of the map is ever copied
+	 * onto the heap. Lines may end with either \n or \r\n.
+	 *
+	 * @param file
+	 *            the map file
+	 * @param pool
+	 *            the threads to decode the rows with
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	private void readMappedFile(MappedFile file, ForkJoinPool pool)
+			throws ParseException, IOException {
+		if (isBinary(file)) {
+			readBinaryMap(file);
+			return;
+		}
+
+		final String header[] = new String[MAPBEGINLINE];
+		long start = 0;
+
+		// Good programmers always check this...
+		for (int lineNum = 0; lineNum < MINLINES; lineNum++) {
+			if (start >= file.size()) {
+				throw new ParseException(
+						"a map file must contain at least three lines", lineNum);
+			}
+			final long end = findLineEnd(file, start);
+			if (lineNum < MAPBEGINLINE) {
+				header[lineNum] = file.getString(start, end,
+						Charset.defaultCharset());
+				start = nextLineStart(file, end);
+			}
+		}
+
+		// The first line should always be the name of the map.
+		parseMapName(header[NAMELINE]);
+
+		// The second line should be the goal.
+		parseMapGoal(header[GOALLINE]);
+
+		// Read in the map data from the file
+		readMap(file, start, pool);
+	}
+
+	/**
+	 * Reads in the map data from the mapped file, storing the tile types to
+	 * this.tiles and any items to this.items. The rows are split between the
+	 * threads of the pool, each of which checks the length of its rows and
+	 * decodes them. If several lines are wrong, the one reported is always the
+	 * first, as it would be if the rows were read one at a time.
+	 *
+	 * Where each row starts has to be known before it can be decoded. In a
+	 * valid map every line is the same length and ends the same way, so the
+	 * start of every row is worked out from the first one. If the file is
+	 * not laid out like that, the rows are found by searching for the end of
+	 * each line in turn instead.
+	 *
+	 * @param file
+	 *            the map file
+	 * @param mapStart
+	 *            the position of the first row of the map in the file
+	 * @param pool
+	 *            the threads to decode the rows with
+	 * @throws ParseException
+	 */
+	private void readMap(MappedFile file, long mapStart, ForkJoinPool pool)
+			throws ParseException {
+		final long mapWidth = findLineEnd(file, mapStart) - mapStart;
+		final long lineLength = nextLineStart(file, mapStart + mapWidth)
+				- mapStart;
+
+		// The whole map is rows of the same length, except that the last may
+		// have no line ending
+		final long mapBytes = file.size() - mapStart;
+		long mapHeight = mapBytes / lineLength;
+		if (mapBytes % lineLength == mapWidth) {
+			mapHeight++;
+		} else if (mapBytes % lineLength != 0) {
+			mapHeight = -1;
+		}
+
+		DecodedRows decoded = null;
+		if (mapHeight > 0) {
+			allocateTiles(mapWidth, mapHeight);
+			decoded = pool.invoke(new RowDecoder(file, null, mapStart,
+					lineLength, 0, this.height, new AtomicInteger(
+							Integer.MAX_VALUE)));
+		}
+
+		if ((decoded == null) || decoded.misaligned) {
+			// Find the start of each row one after another
+			final long rowStarts[] = findRowStarts(file, mapStart);
+			allocateTiles(mapWidth, rowStarts.length);
+			decoded = pool.invoke(new RowDecoder(file, rowStarts, mapStart,
+					lineLength, 0, this.height, new AtomicInteger(
+							Integer.MAX_VALUE)));
+		}
+
+		if (decoded.errorRow != Integer.MAX_VALUE) {
+			throw new ParseException(decoded.errorMessage, decoded.errorRow
+					+ MAPBEGINLINE);
+		}
+		for (int i = 0; i < decoded.itemCount; i++) {
+			this.items.put(decoded.itemCells[i], decoded.itemChars[i]);
+		}
+	}
+
+	/**
+	 * Sets the size of the map and allocates its tiles
+	 *
+	 * @throws ParseException
+	 */
+	private void allocateTiles(long mapWidth, long mapHeight)
+			throws ParseException {
+		// The tiles are a single array, so are limited to 2^31 cells
+		if (mapWidth * mapHeight > Integer.MAX_VALUE - 8) {
+			throw new ParseException("the map is too large", MAPBEGINLINE);
+		}
+
+		this.width = (int) mapWidth;
+		this.height = (int) mapHeight;
+		this.tiles = new byte[this.height * this.width];
+	}
+
+	/**
+	 * @return the position in the file of the start of each row of the map
+	 */
+	private static long[] findRowStarts(MappedFile file, long mapStart) {
+		long rowStarts[] = new long[16];
+		int rows = 0;
+		for (long start = mapStart; start < file.size(); start = nextLineStart(
+				file, findLineEnd(file, start))) {
+			if (rows == rowStarts.length) {
+				rowStarts = Arrays.copyOf(rowStarts, rows * 2);
+			}
+			rowStarts[rows++] = start;
+		}
+		return Arrays.copyOf(rowStarts, rows);
+	}
+
+	/**
+	 * The result of decoding some of the rows of the map: the first problem
+	 * found, if any, and the items found, in the order of their cells.
+	 */
+	private static class DecodedRows {
+		// The first row found to be wrong, or Integer.MAX_VALUE
+		int errorRow = Integer.MAX_VALUE;
+		String errorMessage = null;
+
+		// True if a row didn't end where it was expected to
+		boolean misaligned = false;
+
+		int itemCells[] = new int[0];
+		char itemChars[] = new char[0];
+		int itemCount = 0;
+
+		void addItem(int cell, char item) {
+			if (this.itemCount == this.itemCells.length) {
+				final int capacity = Math.max(16, this.itemCount * 2);
+				this.itemCells = Arrays.copyOf(this.itemCells, capacity);
+				this.itemChars = Arrays.copyOf(this.itemChars, capacity);
+			}
+			this.itemCells[this.itemCount] = cell;
+			this.itemChars[this.itemCount] = item;
+			this.itemCount++;
+		}
+
+		/**
+		 * Adds the results of the rows after these
+		 */
+		DecodedRows merge(DecodedRows later) {
+			if (later.errorRow < this.errorRow) {
+				this.errorRow = later.errorRow;
+				this.errorMessage = later.errorMessage;
+			}
+			this.misaligned |= later.misaligned;
+			for (int i = 0; i < later.itemCount; i++) {
+				addItem(later.itemCells[i], later.itemChars[i]);
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Decodes a range of rows of the map into this.tiles, splitting it in two
+	 * for other threads to take while it is large. The rows are either at
+	 * the positions in rowStarts, or, if that is null, lineLength apart.
+	 */
+	private class RowDecoder extends RecursiveTask<DecodedRows> {
+		private static final long serialVersionUID = 1L;
+
+		// Rows are split up until there are about this many cells in each
+		private static final int CELLS_PER_TASK = 1 << 16;
+
+		private final MappedFile file;
+		private final long rowStarts[];
+		private final long mapStart;
+		private final long lineLength;
+		private final int firstRow;
+		private final int endRow;
+
+		// The first bad row found by any task, so later rows can be skipped
+		private final AtomicInteger firstErrorRow;
+
+		RowDecoder(MappedFile file, long rowStarts[], long mapStart,
+				long lineLength, int firstRow, int endRow,
+				AtomicInteger firstErrorRow) {
+			this.file = file;
+			this.rowStarts = rowStarts;
+			this.mapStart = mapStart;
+			this.lineLength = lineLength;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+			this.firstErrorRow = firstErrorRow;
+		}
+
+		@Override
+		protected DecodedRows compute() {
+			final int rowsPerTask = Math.max(1, CELLS_PER_TASK
+					/ Math.max(1, Map.this.width));
+			if (this.endRow - this.firstRow > rowsPerTask) {
+				final int middle = (this.firstRow + this.endRow) >>> 1;
+				final RowDecoder later = new RowDecoder(this.file,
+						this.rowStarts, this.mapStart, this.lineLength,
+						middle, this.endRow, this.firstErrorRow);
+				later.fork();
+				final DecodedRows result = new RowDecoder(this.file,
+						this.rowStarts, this.mapStart, this.lineLength,
+						this.firstRow, middle, this.firstErrorRow).compute();
+				return result.merge(later.join());
+			}
+
+			final DecodedRows result = new DecodedRows();
+			for (int row = this.firstRow; row < this.endRow; row++) {
+				if ((row > this.firstErrorRow.get()) || result.misaligned) {
+					break;
+				}
+				final String error = decodeRow(row, result);
+				if (error != null) {
+					result.errorRow = row;
+					result.errorMessage = error;
+					this.firstErrorRow.accumulateAndGet(row, Math::min);
+					break;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Checks and decodes one row
+		 *
+		 * @return a description of what is wrong with the row, or null
+		 */
+		private String decodeRow(int row, DecodedRows result) {
+			final int mapWidth = Map.this.width;
+			final long start = (this.rowStarts != null) ? this.rowStarts[row]
+					: this.mapStart + row * this.lineLength;
+			final long end = findLineEnd(this.file, start);
+
+			if (end - start != mapWidth) {
+				return "all lines must be the same length";
+			}
+
+			if (this.rowStarts == null) {
+				// The next row must start where it was assumed to
+				final long next = nextLineStart(this.file, end);
+				final boolean lastRow = (row == Map.this.height - 1);
+				if ((lastRow && (next != this.file.size()))
+						|| (!lastRow && (next - start != this.lineLength))) {
+					result.misaligned = true;
+					return null;
+				}
+			}
+
+			for (int col = 0; col < mapWidth; col++) {
+				// Just use the character representation in the input file.
+				final int character = this.file.get(start + col) & 0xFF;
+				final int cell = row * mapWidth + col;
+				final byte meaning = BYTE_MEANINGS[character];
+
+				if (meaning == INVALID) {
+					return "Invalid character (col:" + col + ")";
 				}
+				if (meaning == ITEM) {
+					// An item must be lying on the floor
+					Map.this.tiles[cell] = (byte) Tile.TileType.FLOOR.ordinal();
+					result.addItem(cell, (char) character);
+				} else {
+					Map.this.tiles[cell] = meaning;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the file is in the binary format written by writeBinary
+	 */
+	private static boolean isBinary(MappedFile file) throws IOException {
+		if (file.size() < BINARY_MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < BINARY_MAGIC.length; i++) {
+			if (file.get(i) != BINARY_MAGIC[i]) {
+				return false;
 			}
 		}
-		return goldCount;
+		return true;
 	}
 
 	/**
-	 * Reads in a file and returns a List of Strings. This makes life slightly
-	 * easier. NB, in Java 1.7 Files.ReadAllLines() will do the job.
+	 * Reads a map in the binary format written by writeBinary. Nothing needs
+	 * to be searched for or checked character by character, so this is much
+	 * quicker than reading the text format. The offset of any ParseException
+	 * is the position in the file, in bytes, where the problem was found.
 	 *
-	 * @param filename
-	 *            The name of the file to read the map from
-	 * @return A List of lines in the file
-	 * @throws FileNotFoundException
+	 * @param file
+	 *            the map file
+	 * @throws ParseException
+	 * @throws IOException
 	 */
-	private List<String> readFile(String filename) throws FileNotFoundException {
-		Scanner scanner = null;
+	private void readBinaryMap(MappedFile file) throws ParseException,
+			IOException {
+		long position = BINARY_MAGIC.length;
 
-		final List<String> lines = new ArrayList<String>();
-		try {
-			// Use a scanner to read all the lines
-			scanner = new Scanner(new FileReader(filename));
+		final int version = readInt(file, position);
+		if (version != BINARY_VERSION) {
+			throw new ParseException("unsupported binary map version "
+					+ version, (int) position);
+		}
+		position += Integer.BYTES;
+
+		// The name is stored as its length and then its UTF-8 bytes
+		final int nameLength = readInt(file, position);
+		position += Integer.BYTES;
+		if ((nameLength < 0) || (position + nameLength > file.size())) {
+			throw new ParseException("the binary map is truncated",
+					(int) position);
+		}
+		this.name = file.getString(position, position + nameLength,
+				StandardCharsets.UTF_8);
+		position += nameLength;
+
+		this.goal = readInt(file, position);
+		position += Integer.BYTES;
+		this.width = readInt(file, position);
+		position += Integer.BYTES;
+		this.height = readInt(file, position);
+		if ((this.width < 0) || (this.height < 0)
+				|| ((long) this.width * this.height > Integer.MAX_VALUE - 8)) {
+			throw new ParseException("invalid map size", (int) position);
+		}
+		position += Integer.BYTES;
+		final int cells = this.width * this.height;
 
-			// Store all the lines in the file
-			while (scanner.hasNextLine()) {
-				lines.add(scanner.nextLine());
+		// The item table is a count, then the cell and character of each item
+		final int itemCount = readInt(file, position);
+		position += Integer.BYTES;
+		final long itemTable = position;
+		for (int i = 0; i < itemCount; i++) {
+			final int cell = readInt(file, position);
+			if ((cell < 0) || (cell >= cells)) {
+				throw new ParseException("item outside the map", (int) position);
 			}
-		} finally {
-			if (scanner != null) {
-				scanner.close();
+			position += Integer.BYTES;
+			final int character = readByte(file, position) & 0xFF;
+			if (BYTE_MEANINGS[character] != ITEM) {
+				throw new ParseException("Invalid item", (int) position);
 			}
+			position++;
+			this.items.put(cell, (char) character);
 		}
+		checkItemTiles(file, itemTable, itemCount, position);
 
-		return lines;
+		// The body holds the tile types in row-major order, packed together
+		if (cells > CHUNKED_CELLS) {
+			final long bodyStart = position;
+			if (bodyStart + (cells + TILES_PER_BYTE - 1) / TILES_PER_BYTE > file
+					.size()) {
+				throw new ParseException("the binary map is truncated",
+						(int) Math.min(file.size(), Integer.MAX_VALUE));
+			}
+			final FileChannel channel = file.getChannel();
+			this.chunks = new ChunkedTerrain(
+					(firstCol, firstRow, cols, rows) -> readTiles(channel,
+							bodyStart, firstCol, firstRow, cols, rows),
+					this.width, this.height, MAX_CHUNKS);
+			return;
+		}
+
+		this.tiles = new byte[cells];
+		for (int cell = 0; cell < cells; cell += TILES_PER_BYTE) {
+			final int packed = readByte(file, position) & 0xFF;
+			final int last = Math.min(cell + TILES_PER_BYTE, cells);
+			for (int i = cell; i < last; i++) {
+				final int type = (packed >>> ((i - cell) * TILE_BITS)) & TILE_MASK;
+				if (type >= TILE_TYPES.length) {
+					throw new ParseException("Invalid tile type", (int) position);
+				}
+				this.tiles[i] = (byte) type;
+			}
+			position++;
+		}
 	}
 
 	/**
-	 * Reads in the map data from the file, storing the tiles to this.map
+	 * Checks that every item in a binary map is on a floor tile, as the text
+	 * format has no way to put one anywhere else. Only the byte of the body
+	 * holding each item's tile is read, so a huge map isn't loaded to do so.
 	 *
-	 * @param lines
-	 *            All the lines of text from the map file
+	 * @param itemTable
+	 *            the position of the first item in the item table
+	 * @param bodyStart
+	 *            the position of the packed tile types
 	 * @throws ParseException
-	 * @throws IllegalStateException
+	 *             if an item isn't on a floor tile, at the position of the
+	 *             item in the item table
+	 */
+	private void checkItemTiles(MappedFile file, long itemTable, int itemCount,
+			long bodyStart) throws ParseException, IOException {
+		long position = itemTable;
+		for (int i = 0; i < itemCount; i++) {
+			final int cell = readInt(file, position);
+			final int packed = readByte(file, bodyStart + cell / TILES_PER_BYTE) & 0xFF;
+			final int type = (packed >>> ((cell % TILES_PER_BYTE) * TILE_BITS))
+					& TILE_MASK;
+			if (type != Tile.TileType.FLOOR.ordinal()) {
+				throw new ParseException("item on "
+						+ ((type < TILE_TYPES.length) ? TILE_TYPES[type].name()
+								: "an invalid tile") + " at column "
+						+ (cell % this.width) + ", row " + (cell / this.width),
+						(int) position);
+			}
+			position += Integer.BYTES + 1;
+		}
+	}
+
+	/**
+	 * Reads the tile types of a rectangle of cells from the packed body of a
+	 * binary map, for ChunkedTerrain. Each row of the rectangle is read from
+	 * the file separately, as the rows are not next to each other.
+	 *
+	 * @return the tile types of the cells in row-major order
+	 * @throws IOException
 	 */
-	private void readMap(List<String> lines) throws ParseException,
-			IllegalStateException {
-		// Read the rest of the map
-		final int mapWidth = lines.get(MAPBEGINLINE).length();
-		final int mapHeight = lines.size() - MAPBEGINLINE;
+	private byte[] readTiles(FileChannel channel, long bodyStart,
+			int firstCol, int firstRow, int cols, int rows) throws IOException {
+		final byte tiles[] = new byte[cols * rows];
+		final ByteBuffer buffer = ByteBuffer.allocate(cols / TILES_PER_BYTE
+				+ 2);
 
-		this.map = new Tile[mapHeight][mapWidth];
+		for (int row = 0; row < rows; row++) {
+			final long firstCell = (long) (firstRow + row) * this.width
+					+ firstCol;
+			final long firstByte = firstCell / TILES_PER_BYTE;
+			final long lastByte = (firstCell + cols - 1) / TILES_PER_BYTE;
 
-		for (int row = 0; row < mapHeight; row++) {
-			final int lineNum = row + MAPBEGINLINE;
-			final String line = lines.get(lineNum);
+			buffer.clear().limit((int) (lastByte - firstByte + 1));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, bodyStart + firstByte
+						+ buffer.position()) < 0) {
+					throw new IOException("the binary map is truncated");
+				}
+			}
 
-			if (line.length() != mapWidth) {
-				throw new ParseException("all lines must be the same length",
-						lineNum);
+			for (int col = 0; col < cols; col++) {
+				final long cell = firstCell + col;
+				final int packed = buffer.get((int) (cell / TILES_PER_BYTE
+						- firstByte)) & 0xFF;
+				final int type = (packed >>> ((cell % TILES_PER_BYTE) * TILE_BITS))
+						& TILE_MASK;
+				if (type >= TILE_TYPES.length) {
+					throw new IOException("Invalid tile type");
+				}
+				tiles[row * cols + col] = (byte) type;
 			}
+		}
+		return tiles;
+	}
 
-			for (int col = 0; col < line.length(); col++) {
-				// Just use the character representation in the input file.
+	/**
+	 * @return the byte at the position, checking that the file is long enough
+	 */
+	private static byte readByte(MappedFile file, long position)
+			throws ParseException, IOException {
+		if (position >= file.size()) {
+			throw new ParseException("the binary map is truncated",
+					(int) Math.min(position, Integer.MAX_VALUE));
+		}
+		return file.get(position);
+	}
+
+	/**
+	 * @return the big-endian int at the position, as written by
+	 *         DataOutputStream, checking that the file is long enough
+	 */
+	private static int readInt(MappedFile file, long position)
+			throws ParseException, IOException {
+		int value = 0;
+		for (int i = 0; i < Integer.BYTES; i++) {
+			value = (value << 8) | (readByte(file, position + i) & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Writes the map in the text format: the name and goal lines, then a line
+	 * of characters for each row of the map. As with writeBinary, items that
+	 * have been picked up are not written.
+	 *
+	 * @param filename
+	 *            The name of the file to write the map to
+	 * @throws IOException
+	 */
+	public void writeText(String filename) throws IOException {
+		try (Writer out = new BufferedWriter(new FileWriter(filename))) {
+			out.write("name " + this.name + "\n");
+			out.write("win " + this.goal + "\n");
+
+			final char line[] = new char[this.width + 1];
+			line[this.width] = '\n';
+			for (int row = 0; row < this.height; row++) {
+				for (int col = 0; col < this.width; col++) {
+					line[col] = getMapChar(col, row);
+				}
+				out.write(line);
+			}
+		}
+	}
+
+	/**
+	 * Writes the map in the binary format, which Map(filename) can load much
+	 * more quickly than a text map. The file holds:
+	 *
+	 * <ul>
+	 * <li>the bytes "DODM" and the version of the format</li>
+	 * <li>the name, as a length and UTF-8 bytes</li>
+	 * <li>the goal, width and height</li>
+	 * <li>the number of items, then the cell and character of each</li>
+	 * <li>the tile types, packed four to a byte, in row-major order</li>
+	 * </ul>
+	 *
+	 * Every number is a big-endian int. Items that have been picked up are not
+	 * written, so this should be called on a freshly loaded map.
+	 *
+	 * @param filename
+	 *            The name of the file to write the map to
+	 * @throws IOException
+	 */
+	public void writeBinary(String filename) throws IOException {
+		final int cells = this.width * this.height;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(filename)))) {
+			out.write(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+
+			final byte nameBytes[] = this.name.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(nameBytes.length);
+			out.write(nameBytes);
 
-				try {
-					this.map[row][col] = Tile.fromChar(line.charAt(col));
-				} catch (final IllegalArgumentException e) {
-					throw new ParseException("Invalid character (col:" + col
-							+ ")", lineNum);
+			out.writeInt(this.goal);
+			out.writeInt(this.width);
+			out.writeInt(this.height);
+
+			// The items are written in the order of their cells, so the same
+			// map always produces the same file
+			out.writeInt(this.items.size());
+			for (int cell = 0; cell < cells; cell++) {
+				final char item = this.items.get(cell);
+				if (item != 0) {
+					out.writeInt(cell);
+					out.writeByte(item);
 				}
 			}
+
+			for (int cell = 0; cell < cells; cell += TILES_PER_BYTE) {
+				int packed = 0;
+				final int last = Math.min(cell + TILES_PER_BYTE, cells);
+				for (int i = cell; i < last; i++) {
+					packed |= getTile(i % this.width, i / this.width) << ((i - cell) * TILE_BITS);
+				}
+				out.writeByte(packed);
+			}
+		}
+	}
+
+	/**
+	 * @return the position of the \n or \r ending the line which begins at
+	 *         start, or the end of the file if it is the last line
+	 */
+	private static long findLineEnd(MappedFile file, long start) {
+		long position = start;
+		while (position < file.size()) {
+			final byte b = file.get(position);
+			if ((b == '\n') || (b == '\r')) {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * @return the position of the line after the one ending at end, skipping
+	 *         both characters of a \r\n
+	 */
+	private static long nextLineStart(MappedFile file, long end) {
+		if (end >= file.size()) {
+			return end;
+		}
+		if ((file.get(end) == '\r') && (end + 1 < file.size())
+				&& (file.get(end + 1) == '\n')) {
+			return end + 2;
+		}
+		return end + 1;
+	}
+
+	/**
+	 * A read-only mapping of a map file. A single mapping can't be larger than
+	 * 2GB, so a large file is mapped as several windows, all of which are
+	 * mapped up front so that any number of threads can read the file at once.
+	 */
+	private static class MappedFile {
+		private static final int WINDOW_SHIFT = 30;
+		private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+
+		private final FileChannel channel;
+		private final long size;
+
+		// The file, WINDOW_SIZE bytes to each window
+		private final MappedByteBuffer windows[];
+
+		MappedFile(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			this.windows = new MappedByteBuffer[(int) ((this.size
+					+ WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+			for (int i = 0; i < this.windows.length; i++) {
+				final long start = i * WINDOW_SIZE;
+				this.windows[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						start, Math.min(WINDOW_SIZE, this.size - start));
+			}
+		}
+
+		long size() {
+			return this.size;
+		}
+
+		FileChannel getChannel() {
+			return this.channel;
 		}
 
+		byte get(long position) {
+			return this.windows[(int) (position >>> WINDOW_SHIFT)]
+					.get((int) (position & (WINDOW_SIZE - 1)));
+		}
+
+		/**
+		 * @return the bytes from start up to end, decoded with the charset
+		 */
+		String getString(long start, long end, Charset charset) {
+			final byte bytes[] = new byte[(int) Math.min(end - start,
+					Integer.MAX_VALUE - 8)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = get(start + i);
+			}
+			return new String(bytes, charset);
+		}
 	}
 
 	/**
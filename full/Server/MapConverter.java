@@ -0,0 +1,77 @@
+import java.io.File;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tool to convert text maps into the binary map format, which the server can
+ * load without parsing. Each map is written beside the original, with the
+ * .txt replaced by .dmap, and can then be given to Program in its place.
+ */
+public class MapConverter {
+
+	private static final String mapDirectory = "Maps";
+	private static final String TEXT_EXTENSION = ".txt";
+	private static final String BINARY_EXTENSION = ".dmap";
+
+	/**
+	 * Main method. Converts the map files named on the command line, or every
+	 * .txt map in the Maps directory if none are named.
+	 *
+	 * @param args
+	 *            The map files to convert
+	 */
+	public static void main(String[] args) {
+		final List<String> filenames = new ArrayList<String>();
+
+		if (args.length == 0) {
+			final File[] files = new File(mapDirectory).listFiles();
+			if (files == null) {
+				System.err.println("Could not find the " + mapDirectory
+						+ " directory");
+				System.exit(1);
+			}
+			for (final File file : files) {
+				if (file.getName().endsWith(TEXT_EXTENSION)) {
+					filenames.add(file.getPath());
+				}
+			}
+		} else {
+			for (final String arg : args) {
+				filenames.add(arg);
+			}
+		}
+
+		boolean failed = false;
+		for (final String filename : filenames) {
+			try {
+				final String binaryName = binaryName(filename);
+				new Map(filename).writeBinary(binaryName);
+				System.out.println("Converted " + filename + " to " + binaryName);
+			} catch (final ParseException e) {
+				System.err.println(filename + ": syntax error on line "
+						+ e.getErrorOffset() + ":" + "\n" + e.getMessage());
+				failed = true;
+			} catch (final Exception e) {
+				System.err.println(filename + ": " + e.getMessage());
+				failed = true;
+			}
+		}
+
+		if (failed) {
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * @return the name of the binary map to write for a text map
+	 */
+	private static String binaryName(String filename) {
+		if (filename.endsWith(TEXT_EXTENSION)) {
+			return filename.substring(0, filename.length()
+					- TEXT_EXTENSION.length())
+					+ BINARY_EXTENSION;
+		}
+		return filename + BINARY_EXTENSION;
+	}
+}
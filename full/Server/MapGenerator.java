@@ -0,0 +1,326 @@
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Generates maps of any size, for testing the game on maps far larger than
+ * the hand-written ones. The map is divided into square rooms by walls with a
+ * door in each, and further walls are scattered inside the rooms. Gold, other
+ * items and exits are then placed on random floor cells.
+ *
+ * The same seed and settings always give the same map. Whether a cell is a
+ * wall depends only on the seed and the cell's position, so the rows are
+ * generated in parallel without changing the result.
+ */
+public class MapGenerator {
+
+	private static final byte FLOOR = (byte) Tile.TileType.FLOOR.ordinal();
+	private static final byte WALL = (byte) Tile.TileType.WALL.ordinal();
+	private static final byte EXIT = (byte) Tile.TileType.EXIT.ordinal();
+
+	// The items other than gold which may be placed, in turn
+	private static final char OTHER_ITEMS[] = { 'H', 'A', 'L', 'S' };
+
+	// Mixed into the hash of a cell so that each decision about it differs
+	private static final long SCATTER = 1;
+	private static final long ROW_DOOR = 2;
+	private static final long COLUMN_DOOR = 3;
+
+	private final long seed;
+
+	private String name = "Generated Dungeon of Dooom";
+	private double wallDensity = 0.1;
+	private int roomSize = 16;
+	private int gold = 10;
+	private int goal = 5;
+	private int items = 4;
+	private int exits = 1;
+
+	/**
+	 * Creates a generator with the default settings
+	 *
+	 * @param seed
+	 *            the seed which decides the map
+	 */
+	public MapGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return this generator, which will name its maps as given
+	 */
+	public MapGenerator setName(String name) {
+		this.name = name;
+		return this;
+	}
+
+	/**
+	 * @param wallDensity
+	 *            the fraction of the cells inside rooms to make walls, from 0
+	 *            up to but not including 1. Dense walls may cut parts of a
+	 *            room off.
+	 * @return this generator
+	 */
+	public MapGenerator setWallDensity(double wallDensity) {
+		if ((wallDensity < 0) || (wallDensity >= 1)) {
+			throw new IllegalArgumentException("wall density must be at least 0 and less than 1");
+		}
+		this.wallDensity = wallDensity;
+		return this;
+	}
+
+	/**
+	 * @param roomSize
+	 *            the distance between the walls dividing rooms, at least 3, or
+	 *            0 to make one big room
+	 * @return this generator
+	 */
+	public MapGenerator setRoomSize(int roomSize) {
+		if ((roomSize != 0) && (roomSize < 3)) {
+			throw new IllegalArgumentException("rooms must be at least 3 cells apart");
+		}
+		this.roomSize = roomSize;
+		return this;
+	}
+
+	/**
+	 * @param gold
+	 *            the amount of gold to place. At least the goal is always
+	 *            placed, so that the map can be won.
+	 * @return this generator
+	 */
+	public MapGenerator setGold(int gold) {
+		this.gold = gold;
+		return this;
+	}
+
+	/**
+	 * @param goal
+	 *            the amount of gold needed to win
+	 * @return this generator
+	 */
+	public MapGenerator setGoal(int goal) {
+		if (goal < 0) {
+			throw new IllegalArgumentException("the goal can't be negative");
+		}
+		this.goal = goal;
+		return this;
+	}
+
+	/**
+	 * @param items
+	 *            the number of items other than gold to place
+	 * @return this generator
+	 */
+	public MapGenerator setItems(int items) {
+		this.items = items;
+		return this;
+	}
+
+	/**
+	 * @param exits
+	 *            the number of exits to place
+	 * @return this generator
+	 */
+	public MapGenerator setExits(int exits) {
+		this.exits = exits;
+		return this;
+	}
+
+	/**
+	 * Generates a map
+	 *
+	 * @param width
+	 *            the width of the map, at least 3
+	 * @param height
+	 *            the height of the map, at least 3
+	 * @return the map, with at least as much gold as its goal
+	 * @throws IllegalStateException
+	 *             if there isn't enough floor for everything to be placed
+	 */
+	public Map generate(final int width, final int height) {
+		if ((width < 3) || (height < 3)
+				|| ((long) width * height > Integer.MAX_VALUE - 8)) {
+			throw new IllegalArgumentException("invalid map size " + width
+					+ "x" + height);
+		}
+
+		final byte tiles[] = new byte[width * height];
+		IntStream.range(0, height).parallel().forEach(row -> {
+			for (int col = 0; col < width; col++) {
+				tiles[row * width + col] = isWall(col, row, width, height) ? WALL
+						: FLOOR;
+			}
+		});
+
+		// There are few enough of these to place one at a time
+		final Random random = new Random(this.seed);
+		final ItemLayer itemLayer = new ItemLayer();
+		for (int i = 0; i < this.exits; i++) {
+			tiles[findEmptyFloor(tiles, itemLayer, random)] = EXIT;
+		}
+		final int goldToPlace = Math.max(this.gold, this.goal);
+		for (int i = 0; i < goldToPlace; i++) {
+			itemLayer.put(findEmptyFloor(tiles, itemLayer, random), 'G');
+		}
+		for (int i = 0; i < this.items; i++) {
+			itemLayer.put(findEmptyFloor(tiles, itemLayer, random),
+					OTHER_ITEMS[i % OTHER_ITEMS.length]);
+		}
+
+		return new Map(this.name, this.goal, width, height, tiles, itemLayer);
+	}
+
+	/**
+	 * Decides whether a cell is a wall. The edge of the map is always wall,
+	 * as are the lines dividing rooms apart from their doors. Cells next to a
+	 * door are always floor so that the door can't be blocked, and the rest
+	 * are walls at random.
+	 */
+	private boolean isWall(int col, int row, int width, int height) {
+		if ((col == 0) || (row == 0) || (col == width - 1)
+				|| (row == height - 1)) {
+			return true;
+		}
+
+		if (this.roomSize != 0) {
+			final boolean rowWall = (row % this.roomSize) == 0;
+			final boolean columnWall = (col % this.roomSize) == 0;
+			if (rowWall || columnWall) {
+				return !isDoor(col, row, width, height);
+			}
+			if (isDoor(col, row - 1, width, height)
+					|| isDoor(col, row + 1, width, height)
+					|| isDoor(col - 1, row, width, height)
+					|| isDoor(col + 1, row, width, height)) {
+				return false;
+			}
+		}
+
+		return random(col, row, SCATTER) < this.wallDensity;
+	}
+
+	/**
+	 * Checks if a cell is the door in a wall between two rooms. Each stretch
+	 * of wall along one side of a room has exactly one door, at a random
+	 * position along it.
+	 */
+	private boolean isDoor(int col, int row, int width, int height) {
+		final boolean rowWall = (row % this.roomSize) == 0;
+		final boolean columnWall = (col % this.roomSize) == 0;
+		if ((rowWall == columnWall) || (row <= 0) || (col <= 0)
+				|| (row >= height - 1) || (col >= width - 1)) {
+			// Corners, the edge of the map and the insides of rooms
+			return false;
+		}
+
+		if (rowWall) {
+			final int roomStart = col - (col % this.roomSize);
+			final int length = Math.min(this.roomSize, width - 1 - roomStart) - 1;
+			return col == roomStart + 1
+					+ (int) (random(roomStart, row, ROW_DOOR) * length);
+		} else {
+			final int roomStart = row - (row % this.roomSize);
+			final int length = Math.min(this.roomSize, height - 1 - roomStart) - 1;
+			return row == roomStart + 1
+					+ (int) (random(col, roomStart, COLUMN_DOOR) * length);
+		}
+	}
+
+	/**
+	 * @return a random cell which is floor and has no item on it
+	 */
+	private static int findEmptyFloor(byte tiles[], ItemLayer itemLayer,
+			Random random) {
+		// Give up rather than search forever on a map that is nearly all wall
+		for (int attempt = 0; attempt < 1000000; attempt++) {
+			final int cell = random.nextInt(tiles.length);
+			if ((tiles[cell] == FLOOR) && (itemLayer.get(cell) == 0)) {
+				return cell;
+			}
+		}
+		throw new IllegalStateException("There isn't enough floor to place everything on the map");
+	}
+
+	/**
+	 * @return a number from 0 up to 1 which depends only on the seed, the
+	 *         cell, and what it is being used to decide
+	 */
+	private double random(int col, int row, long purpose) {
+		final long position = ((long) row << 32) | (col & 0xFFFFFFFFL);
+		final long hash = mix(this.seed + mix(position ^ (purpose * 0x9E3779B97F4A7C15L)));
+		return (hash >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Scrambles the bits of a number, as SplittableRandom does
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Main method, used to generate a map file. The map is written in the
+	 * binary format if the file name ends in .dmap, or as text otherwise.
+	 *
+	 * @param args
+	 *            The width, height, seed and file name, optionally followed by
+	 *            any of -walls density, -rooms size, -gold amount, -goal
+	 *            amount, -items count and -exits count
+	 */
+	public static void main(String[] args) {
+		if ((args.length < 4) || ((args.length % 2) != 0)) {
+			System.err.println("Usage: MapGenerator width height seed file [-walls density] [-rooms size]"
+					+ "\n"
+					+ "    [-gold amount] [-goal amount] [-items count] [-exits count]");
+			System.exit(1);
+		}
+
+		try {
+			final int width = Integer.parseInt(args[0]);
+			final int height = Integer.parseInt(args[1]);
+			final MapGenerator generator = new MapGenerator(Long.parseLong(args[2]));
+			final String filename = args[3];
+
+			for (int i = 4; i < args.length; i += 2) {
+				switch (args[i]) {
+					case "-walls" :
+						generator.setWallDensity(Double.parseDouble(args[i + 1]));
+						break;
+					case "-rooms" :
+						generator.setRoomSize(Integer.parseInt(args[i + 1]));
+						break;
+					case "-gold" :
+						generator.setGold(Integer.parseInt(args[i + 1]));
+						break;
+					case "-goal" :
+						generator.setGoal(Integer.parseInt(args[i + 1]));
+						break;
+					case "-items" :
+						generator.setItems(Integer.parseInt(args[i + 1]));
+						break;
+					case "-exits" :
+						generator.setExits(Integer.parseInt(args[i + 1]));
+						break;
+					default :
+						throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+
+			final long start = System.nanoTime();
+			final Map map = generator.generate(width, height);
+			System.out.println("Generated a " + width + "x" + height + " map in "
+					+ ((System.nanoTime() - start) / 1000000) + "ms");
+
+			if (filename.endsWith(".dmap")) {
+				map.writeBinary(filename);
+			} else {
+				map.writeText(filename);
+			}
+		} catch (final Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+
+/**
+ * Loads each map file once, no matter how many games are played on it. The
+ * first map loaded from a file is kept here untouched, and every game is
+ * given a copy of it. The copies share its terrain, which never changes, and
+ * everything worked out from the terrain, such as where players can start.
+ * They have their own copy-on-write items, so each extra game on a map costs
+ * little more than the items on it.
+ */
+public class MapRegistry {
+
+	// The map loaded from each file, by the canonical path of the file. These
+	// are only ever copied, never played on
+	private static final HashMap<String, Map> maps = new HashMap<String, Map>();
+
+	/**
+	 * Gets a map for a new game, loading it from the file the first time it
+	 * is asked for.
+	 *
+	 * @param filename
+	 *            The name of the file to load the map from
+	 * @return a map which no other game is playing on
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	public static synchronized Map getMap(String filename)
+			throws ParseException, FileNotFoundException {
+		final String key = canonicalPath(filename);
+
+		Map map = maps.get(key);
+		if (map == null) {
+			map = new Map(filename);
+			maps.put(key, map);
+		}
+		return map.copy();
+	}
+
+	/**
+	 * Forgets every map that has been loaded, so that any files which have
+	 * changed are loaded again. Games already running keep their maps.
+	 */
+	public static synchronized void clear() {
+		maps.clear();
+	}
+
+	/**
+	 * @return the path of the file, resolved so that different names for the
+	 *         same file give the same path
+	 */
+	private static String canonicalPath(String filename) {
+		try {
+			return new File(filename).getCanonicalPath();
+		} catch (final IOException e) {
+			return new File(filename).getAbsolutePath();
+		}
+	}
+}
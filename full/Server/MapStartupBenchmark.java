@@ -0,0 +1,127 @@
+import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Measures how long a map takes to load at startup from a binary map file,
+ * compared with the text file it was converted from. bigmap.txt is measured,
+ * then generated maps of 1024 by 1024 and 4096 by 4096, each written out in
+ * both formats. Each file is loaded several times and the median load is
+ * printed.
+ *
+ * The text file is also read the way the server used to read it, for
+ * comparison: a Scanner reads every line into a List of Strings, and then a
+ * Tile is made for every character. That code is copied here, as Map no
+ * longer reads maps like that.
+ *
+ * It must be run from the directory the Maps directory is in, like Program.
+ * The generated maps are written to the temporary directory and deleted
+ * afterwards.
+ */
+public class MapStartupBenchmark {
+
+	// The sides of the generated maps
+	private static final int SIDES[] = { 1024, 4096 };
+
+	// Roughly the number of cells loaded in each format for each map, which
+	// is split into loads of the map
+	private static final long CELLS_LOADED = 100000000;
+
+	// The fewest and most times each file is loaded
+	private static final int MIN_LOADS = 5;
+	private static final int MAX_LOADS = 1000;
+
+	/**
+	 * A way of loading a map file
+	 */
+	private interface Loader {
+		Object load(String filename) throws Exception;
+	}
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.out.println("Map            Cells   Scanner text   Text load   Binary load   Binary size");
+
+		compare("bigmap.txt", "Maps/bigmap.txt", new Map("Maps/bigmap.txt"));
+		for (final int side : SIDES) {
+			final Path textFile = Files.createTempFile("startup", ".txt");
+			textFile.toFile().deleteOnExit();
+			final Map map = new MapGenerator(1).generate(side, side);
+			map.writeText(textFile.toString());
+			compare(side + "x" + side, textFile.toString(), map);
+		}
+	}
+
+	/**
+	 * Converts a text map to the binary format, then times loading it in each
+	 * way and prints a row of the table
+	 *
+	 * @param map
+	 *            the map in the text file, which is written out as binary
+	 */
+	private static void compare(String label, String textFile, Map map) throws Exception {
+		final Path binaryFile = Files.createTempFile("startup", ".dmap");
+		binaryFile.toFile().deleteOnExit();
+		map.writeBinary(binaryFile.toString());
+
+		final long cells = (long) map.getMapWidth() * map.getMapHeight();
+		final int loads = (int) Math.max(MIN_LOADS, Math.min(MAX_LOADS, CELLS_LOADED / cells));
+		System.out.println(String.format("%-11s %8d %12.3fms %9.3fms %11.3fms %11dB", label,
+				cells, median(MapStartupBenchmark::scannerLoad, textFile, loads),
+				median(Map::new, textFile, loads), median(Map::new, binaryFile.toString(), loads),
+				Files.size(binaryFile)));
+	}
+
+	/**
+	 * Loads a map file several times, after loading it once to warm up
+	 *
+	 * @return the median time taken, in milliseconds
+	 */
+	private static double median(Loader loader, String filename, int loads) throws Exception {
+		loader.load(filename);
+		final long times[] = new long[loads];
+		for (int i = 0; i < loads; i++) {
+			final long start = System.nanoTime();
+			loader.load(filename);
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[loads / 2] / 1000000.0;
+	}
+
+	/**
+	 * Reads a text map the way Map used to, checking each row's length and
+	 * making a Tile for every cell, though not reading the name and goal
+	 *
+	 * @return the tiles of the map
+	 */
+	private static Tile[][] scannerLoad(String filename) throws Exception {
+		final List<String> lines = new ArrayList<String>();
+		try (Scanner scanner = new Scanner(new FileReader(filename))) {
+			while (scanner.hasNextLine()) {
+				lines.add(scanner.nextLine());
+			}
+		}
+
+		final int mapWidth = lines.get(2).length();
+		final int mapHeight = lines.size() - 2;
+		final Tile map[][] = new Tile[mapHeight][mapWidth];
+		for (int row = 0; row < mapHeight; row++) {
+			final String line = lines.get(row + 2);
+			if (line.length() != mapWidth) {
+				throw new ParseException("all lines must be the same length", row + 2);
+			}
+			for (int col = 0; col < line.length(); col++) {
+				map[row][col] = Tile.fromChar(line.charAt(col));
+			}
+		}
+		return map;
+	}
+}
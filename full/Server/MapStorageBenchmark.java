@@ -0,0 +1,210 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures the heap a large map takes up and how long a LOOK on it takes. A
+ * 4096 by 4096 map is generated and loaded, and the heap it holds on to is
+ * compared with that of the same map held as a Tile object for every cell,
+ * as Map used to hold it.
+ *
+ * A game is then played on the map by many players who take turns to LOOK,
+ * and the median and 99th percentile of the time each LOOK takes are
+ * printed. For comparison, so is the time taken to read the cells a player
+ * can see from Map and from the Tile objects, which is the part of a LOOK
+ * that the way the map is held affects.
+ *
+ * The map file is written to the temporary directory and deleted afterwards.
+ */
+public class MapStorageBenchmark {
+
+	// The width and height of the map
+	private static final int SIDE = 4096;
+
+	// The number of players on the map, who take turns to LOOK
+	private static final int PLAYERS = 1000;
+
+	// The number of LOOKs to warm up with, and then to time
+	private static final int WARM_UP = 200000;
+	private static final int LOOKS = 200000;
+
+	// How far the players can see without a lantern
+	private static final int LOOK_DISTANCE = 2;
+
+	/**
+	 * A player which ignores everything it is told
+	 */
+	private static final class Listener implements PlayerListener {
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void startTurn() {}
+
+		@Override
+		public void endTurn() {}
+
+		@Override
+		public void win() {}
+
+		@Override
+		public void lose() {}
+
+		@Override
+		public void hpChange(int value) {}
+
+		@Override
+		public void treasureChange(int value) {}
+
+		@Override
+		public void sendChange() {}
+
+		@Override
+		public void sendDelta(String delta) {}
+	}
+
+	/**
+	 * A LOOK, or the part of one being timed
+	 */
+	private interface Look {
+		/**
+		 * @return something worked out from what was seen, so that the work
+		 *         can't be skipped
+		 */
+		int run(int look);
+	}
+
+	// Where the results of the LOOKs are added up
+	private static volatile int seen;
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		final Path mapFile = Files.createTempFile("storage", ".dmap");
+		mapFile.toFile().deleteOnExit();
+		new MapGenerator(1).generate(SIDE, SIDE).writeBinary(mapFile.toString());
+
+		final long empty = usedHeap();
+		final Map map = new Map(mapFile.toString());
+		final long mapHeap = usedHeap() - empty;
+		final Tile tiles[][] = toTiles(map);
+		final long tilesHeap = usedHeap() - empty - mapHeap;
+		System.out.println(String.format("%dx%d map, %d cells", SIDE, SIDE, SIDE * SIDE));
+		System.out.println(String.format("Heap held by Map          %6dMB", mapHeap / 1048576));
+		System.out.println(String.format("Heap held by Tile objects %6dMB", tilesHeap / 1048576));
+
+		final GameLogic game = new GameLogic(mapFile.toString());
+		game.setExitWhenEmpty(false);
+		final int players[] = new int[PLAYERS];
+		for (int i = 0; i < PLAYERS; i++) {
+			players[i] = game.addPlayer(new Listener());
+		}
+		final ReplyBuffer reply = new ReplyBuffer(256);
+		report("LOOK", time(look -> {
+			reply.clear();
+			game.clientLook(players[look % PLAYERS], reply);
+			return reply.length();
+		}));
+
+		// Read the cells around spots spread over the map, as the players
+		// would see them
+		final int spots[] = new int[PLAYERS];
+		for (int i = 0; i < PLAYERS; i++) {
+			spots[i] = (int) (((long) i * 2654435761L) % (SIDE * SIDE));
+		}
+		report("Reading cells from Map", time(look -> {
+			final int spot = spots[look % PLAYERS];
+			return viewMap(map, spot % SIDE, spot / SIDE);
+		}));
+		report("Reading cells from Tiles", time(look -> {
+			final int spot = spots[look % PLAYERS];
+			return viewTiles(tiles, spot % SIDE, spot / SIDE);
+		}));
+	}
+
+	/**
+	 * Times LOOKs one at a time after warming up
+	 *
+	 * @return the time each LOOK took, in nanoseconds, from fastest to slowest
+	 */
+	private static long[] time(Look look) {
+		int sum = 0;
+		for (int i = 0; i < WARM_UP; i++) {
+			sum += look.run(i);
+		}
+		final long times[] = new long[LOOKS];
+		for (int i = 0; i < LOOKS; i++) {
+			final long start = System.nanoTime();
+			sum += look.run(i);
+			times[i] = System.nanoTime() - start;
+		}
+		seen = sum;
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * Prints the median and 99th percentile of the times taken
+	 */
+	private static void report(String what, long times[]) {
+		System.out.println(String.format("%-26s median %7.3fus   99th %7.3fus", what,
+				times[times.length / 2] / 1000.0, times[times.length * 99 / 100] / 1000.0));
+	}
+
+	/**
+	 * Reads the cells within the look distance of a cell from a Map
+	 *
+	 * @return the characters of the cells added together
+	 */
+	private static int viewMap(Map map, int col, int row) {
+		int sum = 0;
+		for (int r = row - LOOK_DISTANCE; r <= row + LOOK_DISTANCE; r++) {
+			for (int c = col - LOOK_DISTANCE; c <= col + LOOK_DISTANCE; c++) {
+				sum += map.insideMap(c, r) ? map.getMapChar(c, r) : '#';
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Reads the cells within the look distance of a cell from Tile objects
+	 *
+	 * @return the characters of the cells added together
+	 */
+	private static int viewTiles(Tile tiles[][], int col, int row) {
+		int sum = 0;
+		for (int r = row - LOOK_DISTANCE; r <= row + LOOK_DISTANCE; r++) {
+			for (int c = col - LOOK_DISTANCE; c <= col + LOOK_DISTANCE; c++) {
+				final boolean inside = (r >= 0) && (r < tiles.length) && (c >= 0)
+						&& (c < tiles[r].length);
+				sum += inside ? tiles[r][c].toChar() : '#';
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the map as a Tile object for every cell, as Map used to hold it
+	 */
+	private static Tile[][] toTiles(Map map) {
+		final Tile tiles[][] = new Tile[map.getMapHeight()][map.getMapWidth()];
+		for (int row = 0; row < tiles.length; row++) {
+			for (int col = 0; col < tiles[row].length; col++) {
+				tiles[row][col] = Tile.fromChar(map.getMapChar(col, row));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * @return the heap in use once everything unreachable has been collected
+	 */
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class NioServer implements Runnable {
+
+	/**
+	 * This class is the non-blocking alternative to the accept loop in Server. A single thread waits
+	 * on a Selector for every connection at once, so an idle client costs a ClientChannel and its
+	 * buffers rather than a whole thread blocked in readLine. Every command from every client is
+	 * processed on this one thread.
+	 *
+	 * When a client's GameLoop is full, that client alone stops being read and is kept in a list of
+	 * paused clients. The selector then wakes up every RETRY_MS to see whether their loops have
+	 * caught up, so a busy game slows down its own clients without holding up anybody else's.
+	 */
+
+	private static final long RETRY_MS = 10; // how often paused clients try to queue their command
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final GameLogic game;
+	private final GameLoop loop;
+	private final RoomManager rooms; // the rooms clients join, or null if there is one game
+	private final List<ClientChannel> paused = new ArrayList<ClientChannel>(); // clients waiting
+	// for room in their GameLoop, only used by the selector thread
+
+	/**
+	 * Opens a non-blocking server socket on the given port and registers it with a new selector. No
+	 * connections are accepted until run is called. If a GameLoop is given, the selector thread only
+	 * handles the network and every command is run by the loop.
+	 */
+	public NioServer(int portNumber, GameLogic game, GameLoop loop) throws IOException {
+		this(portNumber, game, loop, null);
+	}
+
+	/**
+	 * Opens a server socket as above for a server with rooms, where each client's commands are run
+	 * by the GameLoop of the room it joins.
+	 */
+	public NioServer(int portNumber, RoomManager rooms) throws IOException {
+		this(portNumber, null, null, rooms);
+	}
+
+	private NioServer(int portNumber, GameLogic game, GameLoop loop, RoomManager rooms)
+			throws IOException {
+		this.game = game;
+		this.loop = loop;
+		this.rooms = rooms;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(new InetSocketAddress(portNumber));
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Waits for network events and hands each one to the right place: new connections are accepted
+	 * and given a ClientChannel, and readable or writable connections are passed to the
+	 * ClientChannel attached to their key.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				selector.select(paused.isEmpty() ? 0 : RETRY_MS);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						ClientChannel client = (ClientChannel) key.attachment();
+						if (key.isReadable() && client.read()) {
+							paused.add(client);
+						}
+						if (key.isValid() && key.isWritable()) {
+							client.write();
+						}
+					}
+				}
+				paused.removeIf(ClientChannel::resume);
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Accepts a pending connection, switches it to non-blocking mode and registers it for reading.
+	 */
+	private void accept() throws IOException {
+		SocketChannel socketChannel = serverChannel.accept();
+		if (socketChannel == null) {
+			return; // another event already took this connection
+		}
+		socketChannel.configureBlocking(false);
+		SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+		ClientChannel client = (rooms != null) ? new ClientChannel(socketChannel, key, rooms)
+				: new ClientChannel(socketChannel, key, game, loop);
+		key.attach(client);
+		client.run();
+	}
+
+}
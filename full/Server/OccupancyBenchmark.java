@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long it takes to find out who is on a cell with 1000 players
+ * on bigmap.txt. The players are put on random walkable cells, and then the
+ * cells around each player are checked in turn, as a LOOK does, using an
+ * OccupancyIndex as GameLogic does. For comparison, the same is timed for
+ * going through every player's location until one matches, which is how
+ * GameLogic used to find players. Finally a game is played on the map by as
+ * many players, who take turns to LOOK, and those are timed too.
+ *
+ * It must be run from the directory the Maps directory is in, like Program.
+ */
+public class OccupancyBenchmark {
+
+	private static final String MAP = "Maps/bigmap.txt";
+
+	// The number of players on the map
+	private static final int PLAYERS = 1000;
+
+	// How far from each player cells are checked, as a LOOK without a
+	// lantern does
+	private static final int LOOK_DISTANCE = 2;
+
+	// The number of LOOKs to warm up with, and then to time
+	private static final int WARM_UP = 100000;
+	private static final int LOOKS = 100000;
+
+	/**
+	 * A player which ignores everything it is told
+	 */
+	private static final class Listener implements PlayerListener {
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void startTurn() {}
+
+		@Override
+		public void endTurn() {}
+
+		@Override
+		public void win() {}
+
+		@Override
+		public void lose() {}
+
+		@Override
+		public void hpChange(int value) {}
+
+		@Override
+		public void treasureChange(int value) {}
+
+		@Override
+		public void sendChange() {}
+
+		@Override
+		public void sendDelta(String delta) {}
+	}
+
+	/**
+	 * A LOOK, or the part of one being timed
+	 */
+	private interface Look {
+		/**
+		 * @return something worked out from what was seen, so that the work
+		 *         can't be skipped
+		 */
+		int run(int look);
+	}
+
+	// Where the results of the LOOKs are added up
+	private static volatile int seen;
+
+	/**
+	 * Main method, used to run the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		final Map map = new Map(MAP);
+		final int width = map.getMapWidth();
+
+		// Put the players on random walkable cells, one each
+		final OccupancyIndex occupancy = new OccupancyIndex();
+		final List<Location> locations = new ArrayList<Location>();
+		final Random random = new Random(1);
+		while (locations.size() < PLAYERS) {
+			final int col = random.nextInt(width);
+			final int row = random.nextInt(map.getMapHeight());
+			if (map.isWalkable(col, row) && (occupancy.get(row * width + col) == -1)) {
+				occupancy.put(row * width + col, locations.size());
+				locations.add(new Location(col, row));
+			}
+		}
+		System.out.println(String.format("%d players on %s, %d cells checked for each LOOK",
+				PLAYERS, MAP, (2 * LOOK_DISTANCE + 1) * (2 * LOOK_DISTANCE + 1)));
+
+		report("Checks by OccupancyIndex", time(look -> {
+			final int player = look % PLAYERS;
+			final Location location = locations.get(player);
+			int found = 0;
+			for (int row = location.getRow() - LOOK_DISTANCE; row <= location.getRow()
+					+ LOOK_DISTANCE; row++) {
+				for (int col = location.getCol() - LOOK_DISTANCE; col <= location.getCol()
+						+ LOOK_DISTANCE; col++) {
+					if (map.insideMap(col, row)) {
+						final int other = occupancy.get(row * width + col);
+						if ((other != -1) && (other != player)) {
+							found++;
+						}
+					}
+				}
+			}
+			return found;
+		}));
+
+		report("Checks by scanning players", time(look -> {
+			final int player = look % PLAYERS;
+			final Location location = locations.get(player);
+			int found = 0;
+			for (int row = location.getRow() - LOOK_DISTANCE; row <= location.getRow()
+					+ LOOK_DISTANCE; row++) {
+				for (int col = location.getCol() - LOOK_DISTANCE; col <= location.getCol()
+						+ LOOK_DISTANCE; col++) {
+					if (map.insideMap(col, row)
+							&& (otherPlayerOnTile(locations, new Location(col, row), player))) {
+						found++;
+					}
+				}
+			}
+			return found;
+		}));
+
+		final GameLogic game = new GameLogic(MAP);
+		game.setExitWhenEmpty(false);
+		final int players[] = new int[PLAYERS];
+		for (int i = 0; i < PLAYERS; i++) {
+			players[i] = game.addPlayer(new Listener());
+		}
+		final ReplyBuffer reply = new ReplyBuffer(256);
+		report("LOOK", time(look -> {
+			reply.clear();
+			game.clientLook(players[look % PLAYERS], reply);
+			return reply.length();
+		}));
+	}
+
+	/**
+	 * Finds out whether another player is on a cell the way GameLogic used
+	 * to, by going through every player's location
+	 */
+	private static boolean otherPlayerOnTile(List<Location> locations, Location location,
+			int currentPlayerID) {
+		for (int otherPlayerID = 0; otherPlayerID < locations.size(); otherPlayerID++) {
+			if ((otherPlayerID != currentPlayerID)
+					&& locations.get(otherPlayerID).equals(location)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Times LOOKs one at a time after warming up
+	 *
+	 * @return the time each LOOK took, in nanoseconds, from fastest to slowest
+	 */
+	private static long[] time(Look look) {
+		int sum = 0;
+		for (int i = 0; i < WARM_UP; i++) {
+			sum += look.run(i);
+		}
+		final long times[] = new long[LOOKS];
+		for (int i = 0; i < LOOKS; i++) {
+			final long start = System.nanoTime();
+			sum += look.run(i);
+			times[i] = System.nanoTime() - start;
+		}
+		seen = sum;
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * Prints the median and 99th percentile of the times taken
+	 */
+	private static void report(String what, long times[]) {
+		System.out.println(String.format("%-28s median %8.3fus   99th %8.3fus", what,
+				times[times.length / 2] / 1000.0, times[times.length * 99 / 100] / 1000.0));
+	}
+}
@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * Which player is on each occupied cell of a map. There are only ever as many
+ * occupied cells as players, however large the map is, so they are stored by
+ * the index of their cell in a hash table made of primitive arrays, like the
+ * items in an ItemLayer. Looking a cell up creates no objects, and an empty
+ * cell costs nothing, so a game on a huge map only pays for its players.
+ */
+public class OccupancyIndex {
+	// Marks an unused slot in the table; no cell has a negative index
+	private static final int EMPTY = -1;
+
+	// The table is grown before it is more than half full
+	private static final int MIN_CAPACITY = 16;
+
+	// The cell index in each slot, or EMPTY
+	private int[] cells;
+
+	// The ID of the player in each slot
+	private int[] players;
+
+	// The number of occupied cells
+	private int size = 0;
+
+	/**
+	 * Creates an index with no cells occupied
+	 */
+	public OccupancyIndex() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * @return the number of occupied cells
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Finds the player on a cell
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 * @return the ID of the player, or -1 if the cell is empty
+	 */
+	public int get(int cell) {
+		final int slot = find(cell);
+		if (this.cells[slot] == EMPTY) {
+			return -1;
+		}
+		return this.players[slot];
+	}
+
+	/**
+	 * Puts a player on a cell, replacing anyone already there
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 * @param playerID
+	 *            the ID of the player
+	 */
+	public void put(int cell, int playerID) {
+		if (cell < 0) {
+			throw new IllegalArgumentException("invalid cell " + cell);
+		}
+
+		int slot = find(cell);
+		if (this.cells[slot] == EMPTY) {
+			if ((this.size + 1) * 2 > this.cells.length) {
+				grow();
+				slot = find(cell);
+			}
+			this.cells[slot] = cell;
+			this.size++;
+		}
+		this.players[slot] = playerID;
+	}
+
+	/**
+	 * Empties a cell
+	 *
+	 * @param cell
+	 *            the index of the cell
+	 */
+	public void remove(int cell) {
+		int slot = find(cell);
+		if (this.cells[slot] == EMPTY) {
+			return;
+		}
+
+		// Shift back any later entries which would no longer be found once
+		// this slot is empty
+		final int mask = this.cells.length - 1;
+		int next = (slot + 1) & mask;
+		while (this.cells[next] != EMPTY) {
+			final int home = hash(this.cells[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				this.cells[slot] = this.cells[next];
+				this.players[slot] = this.players[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.cells[slot] = EMPTY;
+		this.size--;
+	}
+
+	/**
+	 * @return the slot holding the cell, or the empty slot where it would go
+	 */
+	private int find(int cell) {
+		final int mask = this.cells.length - 1;
+		int slot = hash(cell) & mask;
+		while ((this.cells[slot] != EMPTY) && (this.cells[slot] != cell)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Spreads neighbouring cell indices across the table
+	 */
+	private static int hash(int cell) {
+		final int hash = cell * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Doubles the size of the table, putting every player back in
+	 */
+	private void grow() {
+		final int[] oldCells = this.cells;
+		final int[] oldPlayers = this.players;
+
+		allocate(oldCells.length * 2);
+		for (int slot = 0; slot < oldCells.length; slot++) {
+			if (oldCells[slot] != EMPTY) {
+				final int newSlot = find(oldCells[slot]);
+				this.cells[newSlot] = oldCells[slot];
+				this.players[newSlot] = oldPlayers[slot];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this.cells = new int[capacity];
+		this.players = new int[capacity];
+		Arrays.fill(this.cells, EMPTY);
+	}
+}
@@ -0,0 +1,65 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how long a large text map takes to load as the number of threads
+ * decoding its rows grows. A map is generated and written out as text, then
+ * loaded several times with a pool of 1, 2, 4 and 8 threads, and the median
+ * and fastest loads are printed for each, with the throughput of the median.
+ * The pool is only used for the rows, so the loads are otherwise the same.
+ *
+ * The map file is written to the temporary directory and deleted afterwards.
+ */
+public class ParallelLoadBenchmark {
+
+	// The numbers of threads to load the map with
+	private static final int THREADS[] = { 1, 2, 4, 8 };
+
+	// The number of times the map is loaded with each pool, after the first
+	// load, which isn't counted
+	private static final int LOADS = 5;
+
+	/**
+	 * Main method, used to run the benchmark.
+	 *
+	 * @param args
+	 *            Optionally the width and height of the map, which is 8192 by
+	 *            default
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			System.err.println("Usage: ParallelLoadBenchmark [side]");
+			System.exit(1);
+		}
+		final int side = (args.length > 0) ? Integer.parseInt(args[0]) : 8192;
+
+		final Path mapFile = Files.createTempFile("parallel", ".txt");
+		mapFile.toFile().deleteOnExit();
+		new MapGenerator(1).generate(side, side).writeText(mapFile.toString());
+		final double megabytes = Files.size(mapFile) / 1048576.0;
+		System.out.println(String.format("%dx%d text map of %.1fMB, %d processors", side, side,
+				megabytes, Runtime.getRuntime().availableProcessors()));
+		System.out.println("Threads   Median load   Fastest load   Throughput");
+
+		final long times[] = new long[LOADS];
+		for (final int threads : THREADS) {
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			new Map(mapFile.toString(), pool);
+			for (int i = 0; i < LOADS; i++) {
+				// Collect the last map first, so that it isn't timed
+				System.gc();
+				final long start = System.nanoTime();
+				new Map(mapFile.toString(), pool);
+				times[i] = System.nanoTime() - start;
+			}
+			pool.shutdown();
+
+			Arrays.sort(times);
+			final double median = times[LOADS / 2] / 1000000.0;
+			System.out.println(String.format("%7d %11.1fms %12.1fms %9.1fMB/s", threads, median,
+					times[0] / 1000000.0, megabytes * 1000 / median));
+		}
+	}
+}
@@ -37,6 +37,21 @@ public class Player implements GameItemConsumer {
 	// Items the player has
 	List<GameItem> items;
 
+	// The kinds of item the player has, with the bit for each item's typeId
+	// set, so checking for one doesn't mean looking through the list
+	private long itemTypes = 0;
+
+	// Stats which depend on the items, worked out again whenever an item is
+	// added rather than every time they are needed
+	private int lookDistance;
+	private ViewStencil viewStencil;
+	private int initialAP;
+
+	// The last cells the player had a line of sight to, which are used again
+	// while the player stays where they are. LOOKs may run at once, so this
+	// is volatile rather than being guarded by the game's lock.
+	private volatile LineOfSight.View lastSight = null;
+
 	// Constants
 	// How many AP does a player have by default
 	private static final int defaultAP = 6;
@@ -66,7 +81,8 @@ public class Player implements GameItemConsumer {
 
 		this.listener = listener;
 
-		// Reset the player's AP
+		// Work out the player's stats and reset their AP
+		updateStats();
 		resetAP();
 	}
 
@@ -191,34 +207,36 @@ public class Player implements GameItemConsumer {
 	}
 
 	/**
-	 * Calculates the distances the player can see
+	 * Returns the distance the player can see
 	 *
 	 * @return the distance visible to the player
 	 */
 	public int lookDistance() {
-		int lookDistance = defaultLookDistance;
-
-		// Some items, e.g. the lantern, may increase the look distance
-		for (final GameItem item : this.items) {
-			lookDistance += item.lookDistanceIncrease();
-		}
-
-		return lookDistance;
+		return this.lookDistance;
 	}
 
 	/**
-	 * Returns true if a player can see a tile, based on the offset from the
-	 * player
+	 * Returns the cells the player can see
 	 *
-	 * @param rowOffset
-	 * @param colOffset
-	 * @return true if the player can see the tile with the specified offset.
+	 * @return the stencil for the player's look distance
 	 */
-	public boolean canSeeTile(int rowOffset, int colOffset) {
-		// This is based on the Manhattan distance
+	public ViewStencil viewStencil() {
+		return this.viewStencil;
+	}
 
-		final boolean canSeeTile = (Math.abs(rowOffset) + Math.abs(colOffset) <= lookDistance() + 1);
-		return canSeeTile;
+	/**
+	 * @return the last cells the player had a line of sight to, or null
+	 */
+	public LineOfSight.View getLastSight() {
+		return this.lastSight;
+	}
+
+	/**
+	 * Keeps the cells the player has a line of sight to, to be used again
+	 * while the player stays where they are
+	 */
+	public void setLastSight(LineOfSight.View sight) {
+		this.lastSight = sight;
 	}
 
 	/**
@@ -230,13 +248,7 @@ public class Player implements GameItemConsumer {
 	 * @return true if the player has the item, false otherwise
 	 */
 	public boolean hasItem(GameItem item) {
-		for (final GameItem itemToCompare : this.items) {
-			if (item.getClass() == itemToCompare.getClass()) {
-				return true;
-			}
-		}
-
-		return false;
+		return (this.itemTypes & (1L << item.typeId())) != 0;
 	}
 
 	/**
@@ -257,6 +269,8 @@ public class Player implements GameItemConsumer {
 		// See if the item is retained by the player
 		if (item.isRetainable()) {
 			this.items.add(item);
+			this.itemTypes |= 1L << item.typeId();
+			updateStats();
 		}
 	}
 
@@ -272,6 +286,14 @@ public class Player implements GameItemConsumer {
 		this.listener.sendChange();
 	}
 
+	/**
+	 * @param delta
+	 *            the changed cells which the player can see
+	 */
+	public void sendDelta(String delta) {
+		this.listener.sendDelta(delta);
+	}
+
 	/**
 	 * Handle the start of a player's turn
 	 */
@@ -322,20 +344,37 @@ public class Player implements GameItemConsumer {
 		return this.lastDirection.toString();
 	}
 
+	public char getLastDirectionChar() {
+		return this.lastDirection.toChar();
+	}
+
 	/**
-	 * Calculates the number of AP a player starts his or her turn with
+	 * Returns the number of AP a player starts his or her turn with
 	 *
 	 * @return The amount of AP at the start of a turn
 	 */
 	private int initialAP() {
-		final int initialAP = Player.defaultAP - Player.apPenaltyPerItem
-				* this.items.size();
+		return this.initialAP;
+	}
 
-		if (initialAP < 0) {
-			// Better drop some items
-			return 0;
+	/**
+	 * Works out the stats which depend on the items the player has. This must
+	 * be called whenever the items change.
+	 */
+	private void updateStats() {
+		this.lookDistance = defaultLookDistance;
+
+		// Some items, e.g. the lantern, may change the stats
+		for (final GameItem item : this.items) {
+			this.lookDistance += item.lookDistanceIncrease();
 		}
+		this.viewStencil = ViewStencil.forDistance(this.lookDistance);
 
-		return initialAP;
+		this.initialAP = Player.defaultAP - Player.apPenaltyPerItem
+				* Long.bitCount(this.itemTypes);
+		if (this.initialAP < 0) {
+			// Better drop some items
+			this.initialAP = 0;
+		}
 	}
 }
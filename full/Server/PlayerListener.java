@@ -52,4 +52,13 @@ public interface PlayerListener {
 	public void treasureChange(int value);
 
 	public void sendChange();
+
+	/**
+	 * Informs the listener that some of the cells the player can see have
+	 * changed, without the player needing to LOOK again
+	 *
+	 * @param delta
+	 *            the number of changed cells, followed by a line for each
+	 */
+	public void sendDelta(String delta);
 }
@@ -1,4 +1,7 @@
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Class to handle command line arguments and initialise the correct instances.
@@ -7,6 +10,22 @@ public class Program {
 
 	private static final String mapDirectory = "Maps" + System.getProperty("file.separator");
 
+	private static final String USAGE = "You can either specify \"-b\""
+			+ "\n"
+			+ "to play with a bot, the name of the map you want to play on, or the \"-b\" followed "
+			+ "\n"
+			+ "by the name of the map you want the bot to play on. Add \"-nio\" to serve all "
+			+ "\n"
+			+ "clients from a single non-blocking thread, or \"-virtual\" to use virtual threads. Add "
+			+ "\n"
+			+ "\"-loop\" to run every command on a single game thread, or \"-rooms\" to host a game"
+			+ "\n"
+			+ "in every room that clients JOIN. Add \"-timeout\" and a number of seconds to limit"
+			+ "\n"
+			+ "how long each turn can take, or \"-tick\" and a number of milliseconds for everyone to"
+			+ "\n"
+			+ "take their turn at once. Add \"-sight\" so that players can't see through walls";
+
 	/**
 	 * Main method, used to parse the command line arguments.
 	 *
@@ -18,13 +37,52 @@ public class Program {
 		try {
 			GameLogic game = null;
 			Server server = null;
+			Server.Engine engine = Server.Engine.THREADED;
+			GameLoop loop = null;
+			boolean hostRooms = false;
+			String mapFile = null;
+
+			// The engine flags may appear anywhere, so take them out before looking at the rest
+			final List<String> argList = new ArrayList<String>(Arrays.asList(args));
+			rejectTogether(argList, "-nio", "-virtual");
+			rejectTogether(argList, "-rooms", "-loop");
+			if (argList.remove("-nio")) {
+				System.out.println("Using the non-blocking network engine");
+				engine = Server.Engine.NIO;
+			} else if (argList.remove("-virtual")) {
+				System.out.println("Using virtual threads for clients");
+				engine = Server.Engine.VIRTUAL;
+			}
+			if (argList.remove("-rooms")) {
+				System.out.println("Hosting a game in every room that clients JOIN");
+				hostRooms = true;
+			} else if (argList.remove("-loop")) {
+				System.out.println("Running every command on a single game thread");
+				loop = new GameLoop();
+			}
+			long turnTimeoutMs = 0; // no time limit on turns unless one is given
+			final int seconds = removeNumberFlag(argList, "-timeout", "seconds");
+			if (seconds > 0) {
+				System.out.println("Ending each turn after " + seconds + " seconds");
+				turnTimeoutMs = seconds * 1000L;
+			}
+			final int tickMs = removeNumberFlag(argList, "-tick", "milliseconds");
+			if (tickMs > 0) {
+				System.out.println("Every player takes their turn at once, in ticks of " + tickMs
+						+ " milliseconds");
+			}
+			final boolean lineOfSight = argList.remove("-sight");
+			if (lineOfSight) {
+				System.out.println("Walls block the players' view");
+			}
+			args = argList.toArray(new String[argList.size()]);
 
 			switch (args.length) {
 				case 0 :
 					// No Command line arguments - default map
 					System.out.println("Starting Game with Default Map");
 
-					game = new GameLogic(mapDirectory + "defaultMap");
+					mapFile = "defaultMap";
 					break;
 
 				case 1 :
@@ -33,38 +91,46 @@ public class Program {
 						System.out
 								.println("Starting bot game with default Map");
 
-						game = new GameLogic(mapDirectory + "defaultMap");
+						mapFile = "defaultMap";
 					} else {
 						// Try to load the specified map
 						System.out.println("Starting Game with Map " + args[0]);
-						game = new GameLogic(mapDirectory + args[0]);
+						mapFile = args[0];
 					}
 					break;
 
 				case 2 :
 					// The first one needs to be -b
 					if (args[0].equals("-b")) {
-						game = new GameLogic(mapDirectory + args[1]);
+						mapFile = args[1];
 					} else {
-						System.err
-								.println("The wrong number of arguments have been provided, you can either specify \"-b\" "
-										+ "\n"
-										+ "to play with a bot, the name of the map you want to play on, or the \"-b\" followed "
-										+ "\n"
-										+ "by the name of the map you want the bot to play on");
+						throw new IllegalArgumentException(
+								"The wrong number of arguments have been provided. " + USAGE);
 					}
 					break;
 
 				default :
-					System.err
-							.println("The wrong number of arguments have been provided, you can either specify \"-b\""
-									+ "\n"
-									+ "to play with a bot, the name of the map you want to play on, or the \"-b\" followed "
-									+ "\n"
-									+ "by the name of the map you want the bot to play on");
-					break;
+					throw new IllegalArgumentException(
+							"The wrong number of arguments have been provided. " + USAGE);
+			}
+			if (hostRooms) {
+				// Rooms play this map unless the client asks for another
+				final RoomManager rooms = new RoomManager(mapDirectory, mapFile);
+				rooms.setTurnTimeout(turnTimeoutMs);
+				rooms.setTickLength(tickMs);
+				rooms.setLineOfSight(lineOfSight);
+				server = new Server(rooms, engine);
+			} else {
+				game = new GameLogic(mapDirectory + mapFile);
+				game.setTurnTimeout(turnTimeoutMs);
+				game.setTickLength(tickMs);
+				game.setLineOfSight(lineOfSight);
+				if (loop != null) {
+					// Turns that run out of time are ended on the loop like any command
+					game.setTaskExecutor(loop);
+				}
+				server = new Server(game, engine, loop);
 			}
-			server = new Server(game);
 
 
 		} catch (final ParseException e) {
@@ -77,4 +143,52 @@ public class Program {
 			System.exit(1);
 		}
 	}
+
+	/**
+	 * Takes a flag followed by a number out of the arguments
+	 *
+	 * @param argList
+	 *            the arguments, which the flag and number are removed from
+	 * @param flag
+	 *            the flag, e.g. -timeout
+	 * @param unit
+	 *            what the number counts, for the error message
+	 * @return the number, or zero if the flag isn't there
+	 * @throws IllegalArgumentException
+	 *             if the flag isn't followed by a number which is more than zero
+	 */
+	private static int removeNumberFlag(List<String> argList, String flag, String unit) {
+		final int index = argList.indexOf(flag);
+		if (index == -1) {
+			return 0;
+		}
+		argList.remove(index);
+		final String message = "\"" + flag + "\" must be followed by a number of " + unit
+				+ " which is more than zero. " + USAGE;
+		if (index >= argList.size()) {
+			throw new IllegalArgumentException(message);
+		}
+		final int number;
+		try {
+			number = Integer.parseInt(argList.remove(index));
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException(message);
+		}
+		if (number <= 0) {
+			throw new IllegalArgumentException(message);
+		}
+		return number;
+	}
+
+	/**
+	 * Stops with a usage error if two flags which choose between the same
+	 * options are both given, rather than taking one and treating the other
+	 * as the name of the map
+	 */
+	private static void rejectTogether(List<String> argList, String flag, String otherFlag) {
+		if (argList.contains(flag) && argList.contains(otherFlag)) {
+			throw new IllegalArgumentException("\"" + flag + "\" and \"" + otherFlag
+					+ "\" can't be used together. " + USAGE);
+		}
+	}
 }
@@ -0,0 +1,146 @@
+
+
+/**
+ * A growable buffer of characters used to build long replies such as
+ * LOOKREPLY and RENDERHINT. Each user keeps one and clears it before every
+ * reply, so once it has grown to fit the largest reply, building a reply
+ * allocates nothing at all, unlike joining Strings together.
+ */
+public class ReplyBuffer implements CharSequence {
+	// The characters of the reply, only the first length of which are used
+	private char[] chars;
+	private int length = 0;
+
+	/**
+	 * Creates an empty buffer
+	 *
+	 * @param capacity
+	 *            the number of characters the buffer can hold before growing
+	 */
+	public ReplyBuffer(int capacity) {
+		this.chars = new char[capacity];
+	}
+
+	/**
+	 * Empties the buffer, keeping its storage for the next reply
+	 */
+	public void clear() {
+		this.length = 0;
+	}
+
+	/**
+	 * Adds a character to the end of the buffer
+	 *
+	 * @return this buffer
+	 */
+	public ReplyBuffer append(char character) {
+		ensureCapacity(this.length + 1);
+		this.chars[this.length++] = character;
+		return this;
+	}
+
+	/**
+	 * Adds the characters of a string to the end of the buffer
+	 *
+	 * @return this buffer
+	 */
+	public ReplyBuffer append(String string) {
+		ensureCapacity(this.length + string.length());
+		string.getChars(0, string.length(), this.chars, this.length);
+		this.length += string.length();
+		return this;
+	}
+
+	/**
+	 * Adds part of an array of characters to the end of the buffer
+	 *
+	 * @return this buffer
+	 */
+	public ReplyBuffer append(char[] source, int offset, int count) {
+		ensureCapacity(this.length + count);
+		System.arraycopy(source, offset, this.chars, this.length, count);
+		this.length += count;
+		return this;
+	}
+
+	/**
+	 * Adds a number to the end of the buffer in decimal, without creating a
+	 * String for it first
+	 *
+	 * @return this buffer
+	 */
+	public ReplyBuffer append(int value) {
+		if (value == Integer.MIN_VALUE) {
+			// This can't be negated, but is never used as an offset or a count
+			return append(Integer.toString(value));
+		}
+
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+
+		// Count the digits, then fill them in from the right
+		int digits = 1;
+		for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+			digits++;
+		}
+
+		ensureCapacity(this.length + digits);
+		for (int i = this.length + digits - 1; i >= this.length; i--) {
+			this.chars[i] = (char) ('0' + (value % 10));
+			value /= 10;
+		}
+		this.length += digits;
+		return this;
+	}
+
+	/**
+	 * Gives direct access to the characters, e.g. to write them to a stream.
+	 * Only the first length() of them are part of the reply.
+	 *
+	 * @return the buffer's storage
+	 */
+	public char[] getChars() {
+		return this.chars;
+	}
+
+	@Override
+	public int length() {
+		return this.length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if ((index < 0) || (index >= this.length)) {
+			throw new IndexOutOfBoundsException("index " + index);
+		}
+		return this.chars[index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().substring(start, end);
+	}
+
+	/**
+	 * @return a copy of the reply, which stays the same when the buffer is
+	 *         reused
+	 */
+	@Override
+	public String toString() {
+		return new String(this.chars, 0, this.length);
+	}
+
+	/**
+	 * Makes sure the buffer can hold the given number of characters, at least
+	 * doubling its size when it has to grow
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > this.chars.length) {
+			final char[] larger = new char[Math.max(capacity, this.chars.length * 2)];
+			System.arraycopy(this.chars, 0, larger, 0, this.length);
+			this.chars = larger;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * One of the games hosted by a RoomManager. Each room has its own map and
+ * players, and its commands are run by its own GameLoop, which shares the
+ * manager's worker threads with every other room.
+ */
+public class Room {
+	private final String name;
+	private final GameLogic game;
+	private final GameLoop loop;
+
+	// The number of users who have joined and not yet left. This is only
+	// changed by the RoomManager, while it holds its own lock.
+	private int members = 0;
+
+	Room(String name, GameLogic game, GameLoop loop) {
+		this.name = name;
+		this.game = game;
+		this.loop = loop;
+	}
+
+	/**
+	 * Counts a user joining the room. Only the RoomManager calls this.
+	 */
+	void addMember() {
+		this.members++;
+	}
+
+	/**
+	 * Counts a user leaving the room. Only the RoomManager calls this.
+	 *
+	 * @return the number of users still in the room
+	 */
+	int removeMember() {
+		return --this.members;
+	}
+
+	/**
+	 * @return the name players use to join the room
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the game played in the room
+	 */
+	public GameLogic getGame() {
+		return this.game;
+	}
+
+	/**
+	 * @return the loop which every command for the room's game must be
+	 *         submitted to
+	 */
+	public GameLoop getLoop() {
+		return this.loop;
+	}
+}
@@ -0,0 +1,261 @@
+import java.io.FileNotFoundException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hosts any number of independent games in one server. Each game is played in
+ * a named room, which is created when the first user joins it and torn down
+ * when the last one leaves. Users join with the JOIN command, and a user who
+ * doesn't, e.g. an older client, is put in the default room.
+ *
+ * Every room runs its commands on a GameLoop, and every loop shares the same
+ * fixed number of worker threads. Loops take turns on the workers, so a busy
+ * room can't stop the others being served.
+ *
+ * Opening a room may mean loading its map, so it is done on a thread of its
+ * own, without holding the manager's lock. Joining gives a future rather than
+ * waiting, so the NioServer's selector thread never loads a map, and users
+ * joining or leaving other rooms meanwhile don't have to wait. Anyone else
+ * joining the same room is given the room once it has opened. The openers
+ * are kept apart from the workers, so that a slow map doesn't hold up the
+ * games already being played.
+ */
+public class RoomManager {
+	// The room for users who don't ask for one
+	public static final String DEFAULT_ROOM = "lobby";
+
+	// The most rooms that may be open at once
+	private static final int MAX_ROOMS = 256;
+
+	// Room and map names must match these, so that a map name can't reach
+	// outside the map directory
+	private static final String ROOM_NAME = "[a-zA-Z0-9_-]{1,32}";
+	private static final String MAP_NAME = "[a-zA-Z0-9_-][a-zA-Z0-9_.-]*";
+
+	private final String mapDirectory;
+	private final String defaultMap;
+	private final ExecutorService workers;
+	private final Executor openers;
+
+	// How long each player has to take their turn, or zero for no limit
+	private long turnTimeoutMs = 0;
+
+	// How long each tick lasts if players take their turns at once, or zero
+	private long tickMs = 0;
+
+	// Whether walls block the players' view
+	private boolean lineOfSight = false;
+
+	// The open rooms, by name, including any still being opened. A room which
+	// couldn't be opened is completed with null
+	private final HashMap<String, CompletableFuture<Room>> rooms = new HashMap<String, CompletableFuture<Room>>();
+
+	/**
+	 * Creates a manager with no rooms open. The default map is loaded
+	 * straight away, so that a bad map is reported when the server starts
+	 * rather than when the first user joins.
+	 *
+	 * @param mapDirectory
+	 *            the directory maps are loaded from, ending in a separator
+	 * @param defaultMap
+	 *            the name of the map in the directory for rooms which are
+	 *            joined without naming one
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	public RoomManager(String mapDirectory, String defaultMap)
+			throws ParseException, FileNotFoundException {
+		this.mapDirectory = mapDirectory;
+		this.defaultMap = defaultMap;
+		MapRegistry.getMap(mapDirectory + defaultMap);
+
+		final AtomicInteger workerCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors(), runnable -> {
+			final Thread thread = new Thread(runnable, "Room worker "
+					+ workerCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// Each room being opened has a thread, and no more than MAX_ROOMS are
+		final AtomicInteger openerCount = new AtomicInteger();
+		this.openers = Executors.newCachedThreadPool(runnable -> {
+			final Thread thread = new Thread(runnable, "Room opener "
+					+ openerCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Sets how long each player has to take their turn in rooms opened from
+	 * now on. There is no limit by default.
+	 *
+	 * @param turnTimeoutMs
+	 *            the time limit in milliseconds, or zero for no limit
+	 */
+	public void setTurnTimeout(long turnTimeoutMs) {
+		this.turnTimeoutMs = turnTimeoutMs;
+	}
+
+	/**
+	 * Makes players in rooms opened from now on take their turns at once, in
+	 * ticks of the given length. They take turns one after another by default.
+	 *
+	 * @param tickMs
+	 *            the length of a tick in milliseconds, or zero
+	 */
+	public void setTickLength(long tickMs) {
+		this.tickMs = tickMs;
+	}
+
+	/**
+	 * Sets whether walls block the players' view in rooms opened from now on.
+	 * By default they don't.
+	 */
+	public void setLineOfSight(boolean lineOfSight) {
+		this.lineOfSight = lineOfSight;
+	}
+
+	/**
+	 * Joins a room, opening it if nobody is in it. If the room is already
+	 * open, the map given is ignored and the user plays on the room's map.
+	 * This never waits for a map to load: the room is given through the
+	 * future once it is open. Every room joined must be matched by a call to
+	 * leave.
+	 *
+	 * @param name
+	 *            the name of the room
+	 * @param mapName
+	 *            the name of the map to play if the room is opened, or null
+	 *            for the default map
+	 * @return the room, or a CommandException if the room or map name is not
+	 *         allowed, the map can't be loaded, or too many rooms are open
+	 */
+	public CompletableFuture<Room> join(String name, String mapName) {
+		final CompletableFuture<Room> joined = new CompletableFuture<Room>();
+		if (!name.matches(ROOM_NAME)) {
+			joined.completeExceptionally(new CommandException("invalid room name"));
+		} else {
+			join(name, mapName, joined);
+		}
+		return joined;
+	}
+
+	/**
+	 * Makes one attempt at joining a room, opening it if it isn't open yet
+	 */
+	private void join(String name, String mapName, CompletableFuture<Room> joined) {
+		final CompletableFuture<Room> opening;
+		synchronized (this) {
+			final CompletableFuture<Room> open = this.rooms.get(name);
+			if (open != null) {
+				opening = open;
+			} else if (this.rooms.size() >= MAX_ROOMS) {
+				joined.completeExceptionally(new CommandException("too many rooms are open"));
+				return;
+			} else {
+				opening = new CompletableFuture<Room>();
+				this.rooms.put(name, opening);
+				this.openers.execute(() -> {
+					try {
+						opening.complete(open(name, (mapName == null) ? this.defaultMap
+								: mapName));
+					} catch (final CommandException | RuntimeException e) {
+						synchronized (this) {
+							this.rooms.remove(name);
+						}
+						joined.completeExceptionally(e);
+						opening.complete(null);
+					}
+				});
+			}
+		}
+
+		// If someone else couldn't open the room, try to open it again with
+		// this user's map. If it was opened and then closed again before this
+		// user could join, start again too.
+		opening.thenAccept(room -> {
+			if (joined.isDone()) {
+				return; // this user couldn't open the room
+			}
+			if ((room != null) && enter(name, opening, room)) {
+				joined.complete(room);
+			} else {
+				join(name, mapName, joined);
+			}
+		});
+	}
+
+	/**
+	 * Counts a user into a room which has opened, unless it has been closed
+	 * again since
+	 *
+	 * @return true if the user is now in the room
+	 */
+	private synchronized boolean enter(String name, CompletableFuture<Room> opening, Room room) {
+		if (this.rooms.get(name) != opening) {
+			return false;
+		}
+		room.addMember();
+		return true;
+	}
+
+	/**
+	 * Leaves a room, tearing it down if it is now empty. The room's game and
+	 * loop carry on until any commands already submitted have run, but nobody
+	 * new can join it.
+	 *
+	 * @param room
+	 *            the room that was joined
+	 */
+	public synchronized void leave(Room room) {
+		final int members = room.removeMember();
+		final CompletableFuture<Room> open = this.rooms.get(room.getName());
+		if ((members == 0) && (open != null) && (open.getNow(null) == room)) {
+			this.rooms.remove(room.getName());
+			System.out.println("Room " + room.getName() + " closed");
+		}
+	}
+
+	/**
+	 * Opens a new room playing a map from the map directory. This is called
+	 * on an opener thread, without holding the manager's lock.
+	 */
+	private Room open(String name, String mapName) throws CommandException {
+		if (!mapName.matches(MAP_NAME)) {
+			throw new CommandException("invalid map name");
+		}
+
+		final GameLogic game;
+		try {
+			game = new GameLogic(this.mapDirectory + mapName);
+		} catch (final FileNotFoundException e) {
+			throw new CommandException("no such map");
+		} catch (final ParseException e) {
+			throw new CommandException("map could not be loaded");
+		} catch (final IllegalStateException e) {
+			throw new CommandException(e.getMessage());
+		}
+		// Other rooms carry on when this one empties
+		game.setExitWhenEmpty(false);
+		game.setTurnTimeout(this.turnTimeoutMs);
+		game.setTickLength(this.tickMs);
+		game.setLineOfSight(this.lineOfSight);
+
+		// Turns that run out of time are ended on the room's loop, along with
+		// its users' commands
+		final GameLoop loop = new GameLoop(this.workers);
+		game.setTaskExecutor(loop);
+
+		final Room room = new Room(name, game, loop);
+		System.out.println("Room " + name + " opened with map " + mapName);
+		return room;
+	}
+}
@@ -3,6 +3,7 @@ import java.text.ParseException;
 import java.net.*;
 import java.io.*;
 import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
 
 public class Server implements Runnable {
 
@@ -16,25 +17,95 @@ public class Server implements Runnable {
 	private GameLogic game;
 
 	/**
-	 * Opens a server socket and accepts any incoming connections. For each new connection, a new
-	 * socket is created and a new thread is started with that socket and a shared GameLogic.
+	 * The ways in which the server can handle its connections. THREADED gives every client a
+	 * ClientThread blocking on its own socket, VIRTUAL does the same on virtual threads, and NIO
+	 * serves every client from one NioServer thread.
+	 */
+	public enum Engine {
+		THREADED, VIRTUAL, NIO
+	}
+
+	/**
+	 * Starts a server using the default engine, which gives each client its own thread.
 	 */
 	public Server(GameLogic game) {
+		this(game, Engine.THREADED);
+	}
+
+	/**
+	 * Starts a server using the given engine, where clients take turns to lock the game.
+	 */
+	public Server(GameLogic game, Engine engine) {
+		this(game, engine, null);
+	}
+
+	/**
+	 * Opens a server socket and accepts any incoming connections using the given engine. For the
+	 * threaded engine, a new socket is created for each new connection and a new thread is started
+	 * with that socket and a shared GameLogic. If a GameLoop is given then every command is run by
+	 * its single thread instead of under the game lock.
+	 */
+	public Server(GameLogic game, Engine engine, GameLoop loop) {
+		this(game, null, engine, loop);
+	}
+
+	/**
+	 * Opens a server socket as above for a server hosting many games, each in its own room. Clients
+	 * join a room with the JOIN command, and their commands are run by that room's GameLoop.
+	 */
+	public Server(RoomManager rooms, Engine engine) {
+		this(null, rooms, engine, null);
+	}
+
+	private Server(GameLogic game, RoomManager rooms, Engine engine, GameLoop loop) {
 		// Thread thread = new Thread(this);
 		// thread.start();
 		outputHeaders();
+		if (engine == Engine.NIO) {
+			try {
+				NioServer nioServer = (rooms != null) ? new NioServer(portNumber, rooms)
+						: new NioServer(portNumber, game, loop);
+				nioServer.run(); // only returns if the selector fails
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+			return;
+		}
 		try {
+			ThreadFactory threadFactory = (engine == Engine.VIRTUAL) ? virtualThreadFactory() : Thread::new;
 			ServerSocket serverSocket = new ServerSocket(portNumber);
 			while (true) {
 				Socket clientSocket = serverSocket.accept(); // creates a new socket for each client
-				clientList.add(new ClientThread(clientSocket, game)); // creates a ClientThread with its own
-				// socket and a shared game between all clients
+				if (rooms != null) {
+					clientList.add(new ClientThread(clientSocket, rooms, threadFactory)); // the client
+					// chooses its game once it has connected
+				} else {
+					clientList.add(new ClientThread(clientSocket, game, threadFactory, loop)); // creates
+					// a ClientThread with its own socket and a shared game between all clients
+				}
 			}
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
 		}
 	}
 
+	/**
+	 * Returns a factory for virtual threads. Virtual threads only exist from Java 21, so the factory
+	 * is looked up by reflection, which lets the server still compile and run in threaded mode on
+	 * older versions.
+	 *
+	 * @throws IllegalStateException if this Java version has no virtual threads
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+					.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads need Java 21 or later");
+		}
+	}
+
 	/**
 	 * Prints the column headers for the server's screen output. These are printed here because they
 	 * appear once per instance of a server, rather than once per new client.
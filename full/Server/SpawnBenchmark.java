@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how long it takes to pick a starting cell for a new player as a
+ * large generated map fills up. For each level of crowding the map is filled
+ * with players up to that level, and then many more are placed on it and
+ * taken off again, so the level stays the same while they are timed.
+ *
+ * A FreeCellIndex picks the cells, as GameLogic does. For comparison, the
+ * same is timed for picking random cells until one is walkable and free,
+ * which is how players used to be placed and takes more tries the fuller the
+ * map is. The last level leaves a single cell free.
+ */
+public class SpawnBenchmark {
+
+	// The fractions of the walkable cells which are filled before timing
+	private static final double CROWDING[] = { 0, 0.5, 0.9, 0.99, 0.999 };
+
+	// The number of players timed at each level
+	private static final int SPAWNS = 10000;
+
+	// The most tries picking random cells may take for each level, after
+	// which fewer players are timed
+	private static final long RETRY_LIMIT = 50000000;
+
+	/**
+	 * Main method, used to run the benchmark.
+	 *
+	 * @param args
+	 *            Optionally the width and height of the map, which is 1024 by
+	 *            default
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			System.err.println("Usage: SpawnBenchmark [side]");
+			System.exit(1);
+		}
+		final int side = (args.length > 0) ? Integer.parseInt(args[0]) : 1024;
+
+		final Map map = new MapGenerator(1).generate(side, side);
+		final int walkable = map.getSpawnIndex().walkableCells(map);
+		System.out.println(side + "x" + side + " map with " + walkable + " walkable cells");
+		System.out.println("Crowding   Free cells   Index median   Index 99th   Retry mean   Retry tries");
+
+		final OccupancyIndex occupancy = new OccupancyIndex();
+		final FreeCellIndex freeCells = new FreeCellIndex(map);
+		final Random random = new Random(1);
+		final long[] times = new long[SPAWNS];
+		for (int level = 0; level <= CROWDING.length; level++) {
+			final long players = (level < CROWDING.length) ? (long) (walkable * CROWDING[level])
+					: walkable - 1;
+			while (occupancy.size() < players) {
+				place(freeCells.randomCell(random, occupancy), occupancy, freeCells);
+			}
+
+			for (int i = 0; i < SPAWNS; i++) {
+				final long start = System.nanoTime();
+				final int cell = freeCells.randomCell(random, occupancy);
+				times[i] = System.nanoTime() - start;
+				place(cell, occupancy, freeCells);
+				occupancy.remove(cell);
+				freeCells.vacate(cell);
+			}
+
+			long retryTotal = 0;
+			long tries = 0;
+			int retried = 0;
+			while ((retried < SPAWNS) && (tries < RETRY_LIMIT)) {
+				final long start = System.nanoTime();
+				tries += retryCell(map, random, occupancy);
+				retryTotal += System.nanoTime() - start;
+				retried++;
+			}
+
+			Arrays.sort(times);
+			System.out.println(String.format("%-10s %10d %12.1fus %10.1fus %10.1fus %13.1f",
+					String.format("%.3f%%", occupancy.size() * 100.0 / walkable), freeCells.size(),
+					times[SPAWNS / 2] / 1000.0, times[SPAWNS * 99 / 100] / 1000.0,
+					retryTotal / 1000.0 / retried, (double) tries / retried));
+		}
+	}
+
+	/**
+	 * Puts a player on a cell, as GameLogic does
+	 */
+	private static void place(int cell, OccupancyIndex occupancy, FreeCellIndex freeCells) {
+		occupancy.put(cell, occupancy.size());
+		freeCells.occupy(cell);
+	}
+
+	/**
+	 * Picks random cells until one is walkable and free
+	 *
+	 * @return the number of cells picked
+	 */
+	private static int retryCell(Map map, Random random, OccupancyIndex occupancy) {
+		final int width = map.getMapWidth();
+		final int cells = width * map.getMapHeight();
+		for (int tries = 1;; tries++) {
+			final int cell = random.nextInt(cells);
+			if (map.isWalkable(cell % width, cell / width) && (occupancy.get(cell) == -1)) {
+				return tries;
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * The walkable cells of a map, from which a new player's starting cell is
+ * chosen. Only the terrain matters, which never changes, so one index is made
+ * for each map file and shared by every game on it, like its LineOfSight.
+ *
+ * Rather than listing every walkable cell, the index counts how many there
+ * are in each square chunk of the map, which are the same chunks that
+ * ChunkedTerrain loads a huge map in, so it only takes an int for each chunk.
+ * Each game keeps a FreeCellIndex on top of these counts, taking away the
+ * players in each chunk, and finds a free cell by counting through a single
+ * chunk. The counts are made the first time a player is placed, reading each
+ * chunk of the map once.
+ */
+public class SpawnIndex {
+	// Chunks are CHUNK_SIZE cells square
+	private static final int CHUNK_SIZE = ChunkedTerrain.CHUNK_SIZE;
+
+	// The number of walkable cells in the chunks before each one, row by row,
+	// followed by the total, or null until they are first needed
+	private volatile int[] walkableBefore = null;
+
+	/**
+	 * @param map
+	 *            the map, or any copy of it, since only the terrain is used
+	 * @return the number of walkable cells on the map
+	 */
+	public int walkableCells(Map map) {
+		final int[] before = counts(map);
+		return before[before.length - 1];
+	}
+
+	/**
+	 * @param map
+	 *            the map, or any copy of it, since only the terrain is used
+	 * @return the number of chunks the map is counted in
+	 */
+	public int chunks(Map map) {
+		return counts(map).length - 1;
+	}
+
+	/**
+	 * @param map
+	 *            the map, or any copy of it, since only the terrain is used
+	 * @param chunk
+	 *            the number of the chunk, counting row by row
+	 * @return the number of walkable cells in the chunk
+	 */
+	public int walkableIn(Map map, int chunk) {
+		final int[] before = counts(map);
+		return before[chunk + 1] - before[chunk];
+	}
+
+	/**
+	 * @param map
+	 *            the map, or any copy of it
+	 * @param cell
+	 *            the index of a cell inside the map
+	 * @return the number of the chunk holding the cell, counting row by row
+	 */
+	public static int chunkOf(Map map, int cell) {
+		final int width = map.getMapWidth();
+		final int chunksAcross = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		return (cell / width / CHUNK_SIZE) * chunksAcross + (cell % width)
+				/ CHUNK_SIZE;
+	}
+
+	/**
+	 * Finds a walkable cell in a chunk which no player is on, counting through
+	 * the chunk row by row
+	 *
+	 * @param map
+	 *            the map, or any copy of it, since only the terrain is used
+	 * @param chunk
+	 *            the number of the chunk, counting row by row
+	 * @param rank
+	 *            how many free walkable cells of the chunk to pass over
+	 * @param occupancy
+	 *            who is on each cell
+	 * @return the index of the cell
+	 */
+	public static int freeCell(Map map, int chunk, int rank,
+			OccupancyIndex occupancy) {
+		final int width = map.getMapWidth();
+		final int chunksAcross = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int firstCol = (chunk % chunksAcross) * CHUNK_SIZE;
+		final int firstRow = (chunk / chunksAcross) * CHUNK_SIZE;
+		final int lastCol = Math.min(firstCol + CHUNK_SIZE, width);
+		final int lastRow = Math.min(firstRow + CHUNK_SIZE, map.getMapHeight());
+		for (int row = firstRow; row < lastRow; row++) {
+			for (int col = firstCol; col < lastCol; col++) {
+				if (map.isWalkable(col, row)
+						&& (occupancy.get(row * width + col) == -1)
+						&& (rank-- == 0)) {
+					return row * width + col;
+				}
+			}
+		}
+		throw new IllegalStateException("the free cells have changed");
+	}
+
+	private int[] counts(Map map) {
+		final int[] before = this.walkableBefore;
+		if (before != null) {
+			return before;
+		}
+		return countWalkable(map);
+	}
+
+	/**
+	 * Counts the walkable cells in each chunk, unless another game has just
+	 * done so
+	 */
+	private synchronized int[] countWalkable(Map map) {
+		if (this.walkableBefore != null) {
+			return this.walkableBefore;
+		}
+
+		final int width = map.getMapWidth();
+		final int height = map.getMapHeight();
+		final int chunksAcross = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int chunksDown = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int[] before = new int[chunksAcross * chunksDown + 1];
+
+		int chunk = 0;
+		for (int firstRow = 0; firstRow < height; firstRow += CHUNK_SIZE) {
+			for (int firstCol = 0; firstCol < width; firstCol += CHUNK_SIZE) {
+				int walkable = 0;
+				final int lastRow = Math.min(firstRow + CHUNK_SIZE, height);
+				final int lastCol = Math.min(firstCol + CHUNK_SIZE, width);
+				for (int row = firstRow; row < lastRow; row++) {
+					for (int col = firstCol; col < lastCol; col++) {
+						if (map.isWalkable(col, row)) {
+							walkable++;
+						}
+					}
+				}
+				before[chunk + 1] = before[chunk] + walkable;
+				chunk++;
+			}
+		}
+
+		this.walkableBefore = before;
+		return before;
+	}
+}
@@ -29,6 +29,20 @@ public class Tile {
 		public char toChar() {
 			return this.character;
 		}
+
+		/**
+		 * Finds the tile type represented by a character
+		 * 
+		 * @return the tile type, or null if the character isn't one
+		 */
+		public static TileType fromChar(char character) {
+			for (final TileType type : values()) {
+				if (character == type.toChar()) {
+					return type;
+				}
+			}
+			return null;
+		}
 	}
 
 	// The type of the tile
@@ -37,6 +51,10 @@ public class Tile {
 	// A tile may contain an item
 	private GameItem item = null;
 
+	// The map this tile is a view of, and the index of its cell, if any
+	private final Map map;
+	private final int cell;
+
 	/**
 	 * Creates a tile without an item
 	 * 
@@ -44,7 +62,7 @@ public class Tile {
 	 *            the type of tile to create
 	 */
 	public Tile(TileType type) {
-		this.type = type;
+		this(type, null, null, -1);
 	}
 
 	/**
@@ -55,9 +73,27 @@ public class Tile {
 	 */
 	public Tile(GameItem item) {
 		// Only a floor tile can have an item
-		this(TileType.FLOOR);
+		this(TileType.FLOOR, item, null, -1);
+	}
 
+	/**
+	 * Creates a tile which views a cell of a map. The map stores its cells
+	 * more compactly than as Tiles, so this is how it hands them out.
+	 * 
+	 * @param type
+	 *            the type of the cell
+	 * @param item
+	 *            the item on the cell, or null
+	 * @param map
+	 *            the map holding the cell
+	 * @param cell
+	 *            the index of the cell in the map
+	 */
+	Tile(TileType type, GameItem item, Map map, int cell) {
+		this.type = type;
 		this.item = item;
+		this.map = map;
+		this.cell = cell;
 	}
 
 	/**
@@ -109,7 +145,8 @@ public class Tile {
 	}
 
 	/**
-	 * Removes the item from the tile, e.g. after a successful pickup.
+	 * Removes the item from the tile, e.g. after a successful pickup. If the
+	 * tile is a view of a map, the item is removed from the map too.
 	 */
 	public void removeItem() {
 		if (this.item == null) {
@@ -117,6 +154,9 @@ public class Tile {
 			throw new IllegalStateException("there is no item to pick up");
 		} else {
 			this.item = null;
+			if (this.map != null) {
+				this.map.removeItem(this.cell);
+			}
 		}
 	}
 
@@ -128,10 +168,9 @@ public class Tile {
 	 * @return the Tile object corresponding to the character
 	 */
 	public static Tile fromChar(char character) {
-		for (final TileType type : TileType.values()) {
-			if (character == type.toChar()) {
-				return new Tile(type);
-			}
+		final TileType type = TileType.fromChar(character);
+		if (type != null) {
+			return new Tile(type);
 		}
 
 		// If we get here, it must be an tile with an item
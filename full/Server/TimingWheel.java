@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs tasks after a delay, for deadlines which are usually cancelled before
+ * they are reached, such as the time limit on each turn. Timeouts are kept in
+ * a hashed timing wheel: a ring of buckets, one for each tick of the clock,
+ * which a single thread steps round. A timeout goes in the bucket for the tick
+ * it expires on, along with how many more times round the wheel must go
+ * first. Scheduling and cancelling a timeout are therefore O(1) however many
+ * are pending, unlike a priority queue.
+ *
+ * Timeouts expire up to one tick late, which is fine for deadlines measured in
+ * seconds. One wheel is shared by every game in the server.
+ */
+public class TimingWheel implements Runnable {
+
+	/**
+	 * A task waiting in the wheel, which can be cancelled until it has run
+	 */
+	public final class Timeout {
+		private final Runnable task;
+
+		// The number of times round the wheel before this expires
+		private long rounds;
+
+		// The bucket this is in, and its neighbours there, or null once it has
+		// expired or been cancelled
+		private Timeout[] bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Stops the task from running, if it hasn't already. This is safe to
+		 * call more than once.
+		 */
+		public void cancel() {
+			synchronized (TimingWheel.this) {
+				unlink(this);
+			}
+		}
+	}
+
+	// The wheel shared by the whole server
+	private static TimingWheel shared = null;
+
+	private final long tickMs;
+
+	// The first timeout in each bucket, or null
+	private final Timeout[][] buckets;
+	private final int mask;
+
+	// The number of ticks that have passed
+	private long tick = 0;
+
+	/**
+	 * Creates a wheel and starts its thread
+	 *
+	 * @param tickMs
+	 *            how often the wheel moves on a bucket, in milliseconds
+	 * @param wheelSize
+	 *            the number of buckets, which is rounded up to a power of two
+	 */
+	public TimingWheel(long tickMs, int wheelSize) {
+		this.tickMs = tickMs;
+		final int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.buckets = new Timeout[size][];
+		for (int i = 0; i < size; i++) {
+			this.buckets[i] = new Timeout[1];
+		}
+		this.mask = size - 1;
+
+		final Thread thread = new Thread(this, "TimingWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the wheel shared by the whole server, which ticks ten times a
+	 *         second and goes round every 51.2 seconds
+	 */
+	public static synchronized TimingWheel getShared() {
+		if (shared == null) {
+			shared = new TimingWheel(100, 512);
+		}
+		return shared;
+	}
+
+	/**
+	 * Schedules a task to be run by the wheel's thread after a delay. The task
+	 * should be short, e.g. handing work on to a game, as every other timeout
+	 * waits for it.
+	 *
+	 * @param task
+	 *            the task to run
+	 * @param delayMs
+	 *            how long to wait, in milliseconds
+	 * @return the timeout, which can be used to cancel it
+	 */
+	public synchronized Timeout schedule(Runnable task, long delayMs) {
+		final Timeout timeout = new Timeout(task);
+
+		// Always wait at least one whole tick
+		final long ticks = Math.max(1, (delayMs + this.tickMs - 1) / this.tickMs);
+		final long expiry = this.tick + ticks;
+		timeout.rounds = (ticks - 1) / this.buckets.length;
+
+		final Timeout[] bucket = this.buckets[(int) (expiry & this.mask)];
+		timeout.bucket = bucket;
+		timeout.next = bucket[0];
+		if (bucket[0] != null) {
+			bucket[0].previous = timeout;
+		}
+		bucket[0] = timeout;
+		return timeout;
+	}
+
+	/**
+	 * Moves the wheel on a bucket every tick, running the timeouts which have
+	 * expired. The tasks are run without holding the wheel's lock, so that a
+	 * task may wait for something which is itself scheduling a timeout.
+	 */
+	@Override
+	public void run() {
+		final List<Runnable> expired = new ArrayList<Runnable>();
+		long nextTick = System.nanoTime();
+		while (true) {
+			nextTick += this.tickMs * 1000000;
+			final long sleepMs = (nextTick - System.nanoTime()) / 1000000;
+			if (sleepMs > 0) {
+				try {
+					Thread.sleep(sleepMs);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			synchronized (this) {
+				this.tick++;
+				Timeout timeout = this.buckets[(int) (this.tick & this.mask)][0];
+				while (timeout != null) {
+					final Timeout next = timeout.next;
+					if (timeout.rounds == 0) {
+						unlink(timeout);
+						expired.add(timeout.task);
+					} else {
+						timeout.rounds--;
+					}
+					timeout = next;
+				}
+			}
+
+			for (final Runnable task : expired) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					System.err.println(e.getMessage());
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Takes a timeout out of its bucket, if it is still in one
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.bucket == null) {
+			return;
+		}
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			timeout.bucket[0] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.bucket = null;
+		timeout.previous = null;
+		timeout.next = null;
+	}
+}
@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/**
+ * The cells a player can see, as offsets from the player, for one look
+ * distance. A player sees the cells within the square of their look distance
+ * whose Manhattan distance is at most one more than it, which makes a diamond
+ * with its corners cut off. Every row of that shape is one unbroken span
+ * centred on the player, so a stencil only needs the half width of each row,
+ * and a LOOK can visit just the visible cells and copy the 'X's either side
+ * of them from a ready-made run.
+ *
+ * Stencils never change, so one for each look distance is made the first time
+ * it is needed and shared by every player and game from then on.
+ */
+public final class ViewStencil {
+	// The stencils made so far, by look distance
+	private static volatile ViewStencil[] stencils = new ViewStencil[0];
+
+	private final int distance;
+
+	// How far either side of the player's column can be seen on each row,
+	// starting with the furthest row above the player
+	private final int[] halfWidths;
+
+	// Enough 'X's for the hidden part of any row on one side of the player
+	private final char[] hidden;
+
+	private ViewStencil(int distance) {
+		this.distance = distance;
+		this.halfWidths = new int[2 * distance + 1];
+		for (int rowOffset = -distance; rowOffset <= distance; rowOffset++) {
+			this.halfWidths[rowOffset + distance] = Math.min(distance, distance + 1
+					- Math.abs(rowOffset));
+		}
+		this.hidden = new char[distance];
+		Arrays.fill(this.hidden, 'X');
+	}
+
+	/**
+	 * Returns the stencil for a look distance, making it if this is the first
+	 * time it has been asked for
+	 *
+	 * @param distance
+	 *            the look distance, which may not be negative
+	 * @return the stencil
+	 */
+	public static ViewStencil forDistance(int distance) {
+		final ViewStencil[] known = stencils;
+		if ((distance < known.length) && (known[distance] != null)) {
+			return known[distance];
+		}
+		return makeStencil(distance);
+	}
+
+	private static synchronized ViewStencil makeStencil(int distance) {
+		ViewStencil[] known = stencils;
+		if (distance >= known.length) {
+			known = Arrays.copyOf(known, distance + 1);
+		}
+		if (known[distance] == null) {
+			known[distance] = new ViewStencil(distance);
+		}
+		stencils = known;
+		return known[distance];
+	}
+
+	/**
+	 * @return the look distance this stencil is for
+	 */
+	public int getDistance() {
+		return this.distance;
+	}
+
+	/**
+	 * Returns how far either side of the player's column can be seen on a row
+	 *
+	 * @param rowOffset
+	 *            the row relative to the player, from -distance to distance
+	 * @return the number of visible cells either side of the player's column
+	 */
+	public int halfWidth(int rowOffset) {
+		return this.halfWidths[rowOffset + this.distance];
+	}
+
+	/**
+	 * Checks whether a cell can be seen
+	 *
+	 * @return true if the cell with the given offset from the player is visible
+	 */
+	public boolean canSee(int rowOffset, int colOffset) {
+		return (Math.abs(rowOffset) <= this.distance)
+				&& (Math.abs(colOffset) <= this.halfWidths[rowOffset + this.distance]);
+	}
+
+	/**
+	 * Adds the 'X's for the hidden cells at one end of a row
+	 *
+	 * @param reply
+	 *            the buffer to add them to
+	 * @param rowOffset
+	 *            the row relative to the player
+	 */
+	public void appendHidden(ReplyBuffer reply, int rowOffset) {
+		reply.append(this.hidden, 0, this.distance - halfWidth(rowOffset));
+	}
+}
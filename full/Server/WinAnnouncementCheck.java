@@ -0,0 +1,245 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a win is announced without holding up the game. The server is
+ * started in this process on tinytest.txt, which needs no gold to win, and
+ * two clients connect: one is put next to the exit and steps onto it, while
+ * the other keeps sending LOOKs. Every command must be answered promptly while
+ * the WIN and LOSE messages are waiting to be sent, and those messages must
+ * still arrive about a second after the winning move. It prints PASS or FAIL,
+ * and exits with 1 if the check failed.
+ *
+ * It must be run from the directory the Maps directory is in, like Program.
+ */
+public class WinAnnouncementCheck {
+
+	private static final int PORT = 59652;
+
+	// The longest a command may take to be answered
+	private static final long REPLY_LIMIT_MS = 200;
+
+	// When the WIN and LOSE messages should arrive after the winning move,
+	// which is delayed by a second so that the move's replies go first
+	private static final long ANNOUNCE_EARLIEST_MS = 900;
+	private static final long ANNOUNCE_LATEST_MS = 2000;
+
+	/**
+	 * A connection to the server, with every line it has been sent and when
+	 */
+	private static final class Client {
+		private final Socket socket;
+		private final PrintWriter out;
+		private final List<String> lines = new ArrayList<String>();
+		private final List<Long> times = new ArrayList<Long>();
+
+		// How many of the lines have been waited for already
+		private int seen = 0;
+
+		private Client() throws IOException, InterruptedException {
+			this.socket = connect();
+			this.out = new PrintWriter(this.socket.getOutputStream(), true);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(
+					this.socket.getInputStream()));
+			final Thread reader = new Thread(() -> {
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						synchronized (this) {
+							this.lines.add(line);
+							this.times.add(System.nanoTime());
+							notifyAll();
+						}
+					}
+				} catch (final IOException e) {}
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void send(String line) {
+			this.out.println(line);
+		}
+
+		/**
+		 * Waits for a line starting with one of the prefixes, skipping any
+		 * other lines that come first
+		 *
+		 * @return the time the line arrived, from System.nanoTime(), or -1 if
+		 *         it didn't arrive in time
+		 */
+		private synchronized long await(long timeoutMs, String... prefixes)
+				throws InterruptedException {
+			final long deadline = System.nanoTime() + timeoutMs * 1000000;
+			while (true) {
+				for (; this.seen < this.lines.size(); this.seen++) {
+					for (final String prefix : prefixes) {
+						if (this.lines.get(this.seen).startsWith(prefix)) {
+							return this.times.get(this.seen++);
+						}
+					}
+				}
+				final long waitMs = (deadline - System.nanoTime()) / 1000000;
+				if (waitMs <= 0) {
+					return -1;
+				}
+				wait(waitMs);
+			}
+		}
+
+		/**
+		 * @return the time a line starting with the prefix arrived, from
+		 *         System.nanoTime(), or -1 if none has
+		 */
+		private synchronized long arrival(String prefix) {
+			for (int i = 0; i < this.lines.size(); i++) {
+				if (this.lines.get(i).startsWith(prefix)) {
+					return this.times.get(i);
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Forgets the lines sent so far, once the client has settled down
+		 */
+		private synchronized void skipAll() {
+			this.seen = this.lines.size();
+		}
+	}
+
+	/**
+	 * Main method, used to run the check.
+	 *
+	 * @param args
+	 *            The engine (threaded, virtual or nio), optionally followed by
+	 *            "-loop" to run the game on a GameLoop
+	 */
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 1) || (args.length > 2)
+				|| ((args.length == 2) && !args[1].equals("-loop"))) {
+			System.err.println("Usage: WinAnnouncementCheck threaded|virtual|nio [-loop]");
+			System.exit(1);
+		}
+		final Server.Engine engine = Server.Engine.valueOf(args[0].toUpperCase());
+		if ((engine == Server.Engine.VIRTUAL) && (Runtime.version().feature() < 21)) {
+			System.err.println("Virtual threads need Java 21 or later");
+			System.exit(2);
+		}
+
+		// The server logs every command, which would swamp the report
+		final PrintStream report = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		final GameLogic game = new GameLogic("Maps/tinytest.txt");
+		game.setExitWhenEmpty(false);
+		GameLoop loop = null;
+		if (args.length == 2) {
+			loop = new GameLoop();
+			game.setTaskExecutor(loop);
+		}
+		final GameLoop gameLoop = loop;
+		final Thread serverThread = new Thread(() -> new Server(game, engine, gameLoop),
+				"Check server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// The first player to connect takes the first turn, one step from the
+		// exit in the bottom right corner
+		final Client winner = new Client();
+		winner.send("HELLO winner");
+		winner.send("SETPLAYERPOS 1 2");
+		final Client watcher = new Client();
+		watcher.send("HELLO watcher");
+		watcher.send("SETPLAYERPOS 0 0");
+		Thread.sleep(500);
+		winner.skipAll();
+		watcher.skipAll();
+
+		boolean passed = true;
+		final long moveTime = System.nanoTime();
+		winner.send("MOVE E");
+		passed &= check(report, "winning MOVE answered", moveTime,
+				winner.await(REPLY_LIMIT_MS, "SUCCESS", "FAIL"), REPLY_LIMIT_MS);
+
+		// Keep both players busy until the result has been announced
+		long slowestLook = 0;
+		int looks = 0;
+		while ((watcher.arrival("LOSE") == -1)
+				&& (System.nanoTime() - moveTime < ANNOUNCE_LATEST_MS * 1000000)) {
+			for (final Client client : new Client[] { watcher, winner }) {
+				final long sent = System.nanoTime();
+				client.send("LOOK");
+				final long answered = client.await(REPLY_LIMIT_MS * 5, "LOOKREPLY");
+				if (answered == -1) {
+					slowestLook = Long.MAX_VALUE;
+				} else {
+					slowestLook = Math.max(slowestLook, (answered - sent) / 1000000);
+				}
+				looks++;
+			}
+			Thread.sleep(20);
+		}
+		report.println(looks + " LOOKs sent while the result was pending, slowest answered in "
+				+ ((slowestLook == Long.MAX_VALUE) ? "never" : slowestLook + "ms"));
+		passed &= (slowestLook <= REPLY_LIMIT_MS);
+
+		passed &= checkAnnouncement(report, "WIN", moveTime, winner.arrival("WIN"));
+		passed &= checkAnnouncement(report, "LOSE", moveTime, watcher.arrival("LOSE"));
+
+		report.println(passed ? "PASS" : "FAIL");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Reports how long something took after the winning move
+	 *
+	 * @return true if it happened within the limit
+	 */
+	private static boolean check(PrintStream report, String what, long moveTime,
+			long time, long limitMs) {
+		if (time == -1) {
+			report.println(what + ": never");
+			return false;
+		}
+		final long ms = (time - moveTime) / 1000000;
+		report.println(what + " after " + ms + "ms");
+		return ms <= limitMs;
+	}
+
+	/**
+	 * Reports when an announcement arrived after the winning move
+	 *
+	 * @return true if it arrived about a second after the move
+	 */
+	private static boolean checkAnnouncement(PrintStream report, String message,
+			long moveTime, long time) {
+		final boolean onTime = check(report, message + " received", moveTime, time,
+				ANNOUNCE_LATEST_MS);
+		return onTime && ((time - moveTime) / 1000000 >= ANNOUNCE_EARLIEST_MS);
+	}
+
+	/**
+	 * Connects a client, retrying until the server has started listening
+	 */
+	private static Socket connect() throws IOException, InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), PORT);
+			} catch (final IOException e) {
+				if (attempt == 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+}